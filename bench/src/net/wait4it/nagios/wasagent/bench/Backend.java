@@ -0,0 +1,78 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.wait4it.nagios.wasagent.bench;
+
+import java.util.List;
+import java.util.Set;
+
+import javax.management.ObjectName;
+
+import com.ibm.websphere.pmi.stat.WSStats;
+
+/**
+ * What the proxy sees of a simulated WAS instance:
+ * one method per remote call.
+ */
+public interface Backend {
+
+    /**
+     * @return the server logical name
+     */
+    String getName();
+
+    /**
+     * Opens a connection to the server.
+     *
+     * @throws Exception
+     */
+    void connect() throws Exception;
+
+    /**
+     * @param  name the NAME field of a PMI interface
+     * @return the whole module tree, or null if unknown
+     * @throws Exception
+     */
+    WSStats getStats(String name) throws Exception;
+
+    /**
+     * @param  paths     the stats paths, each one starting with
+     *                   the NAME field of a PMI interface
+     * @param  recursive true to fetch the subtree of each node
+     * @return a WSStats object for each path (null if not found)
+     * @throws Exception
+     */
+    WSStats[] getStats(List<String[]> paths, boolean recursive) throws Exception;
+
+    /**
+     * @param  query an ObjectName pattern
+     * @return the matching MBeans
+     * @throws Exception
+     */
+    Set<ObjectName> getMBeans(String query) throws Exception;
+
+    /**
+     * @param  mbean     an MBean of the server
+     * @param  attribute the attribute name
+     * @return the attribute value
+     * @throws Exception
+     */
+    Object getAttribute(ObjectName mbean, String attribute) throws Exception;
+
+}
@@ -0,0 +1,64 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.wait4it.nagios.wasagent.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A set of simulated WAS instances, by target
+ * identifier (host:port), as the agent would see
+ * a WebSphere cell.
+ */
+public final class FakeCell {
+
+    private final Map<String,Backend> servers = new ConcurrentHashMap<String,Backend>();
+    private final List<String> targets = new ArrayList<String>();
+
+    /**
+     * Adds a WAS instance to the cell.
+     *
+     * @param target the target identifier (host:port)
+     * @param server the simulated WAS instance
+     */
+    public synchronized void add(String target, Backend server) {
+        if (servers.put(target, server) == null) {
+            targets.add(target);
+        }
+    }
+
+    /**
+     * @param  target the target identifier (host:port)
+     * @return the WAS instance, or null if unknown
+     */
+    public Backend getServer(String target) {
+        return servers.get(target);
+    }
+
+    /**
+     * @return the target identifiers, in insertion order
+     */
+    public synchronized List<String> getTargets() {
+        return new ArrayList<String>(targets);
+    }
+
+}
@@ -0,0 +1,53 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.wait4it.nagios.wasagent.bench;
+
+import java.util.Map;
+
+import net.wait4it.nagios.wasagent.core.WASClientProxy;
+import net.wait4it.nagios.wasagent.core.WASStatsManager;
+
+/**
+ * A stats manager whose tests query the simulated
+ * WAS instances of a fake cell. Unknown targets fail
+ * as unreachable hosts would.
+ */
+public class FakeManager extends WASStatsManager {
+
+    private final FakeCell cell;
+
+    /**
+     * @param cell the simulated WAS instances
+     */
+    public FakeManager(FakeCell cell) {
+        this.cell = cell;
+    }
+
+    @Override
+    protected WASClientProxy createProxy(Map<String, String> params) {
+        String target = params.get("hostname") + ":" + params.get("port");
+        Backend server = cell.getServer(target);
+        if (server == null) {
+            throw new IllegalArgumentException("unknown target: " + target);
+        }
+        return new FakeProxy(params, server);
+    }
+
+}
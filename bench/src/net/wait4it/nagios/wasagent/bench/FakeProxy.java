@@ -0,0 +1,78 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.wait4it.nagios.wasagent.bench;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.management.ObjectName;
+
+import com.ibm.websphere.pmi.stat.WSStats;
+
+import net.wait4it.nagios.wasagent.core.WASClientProxy;
+
+/**
+ * A proxy which queries a simulated WAS instance
+ * (synthetic or replayed) instead of a remote one.
+ */
+public class FakeProxy extends WASClientProxy {
+
+    private final Backend server;
+
+    /**
+     * @param params HTTP query parameters
+     * @param server the simulated WAS instance
+     */
+    public FakeProxy(Map<String,String> params, Backend server) {
+        super(params);
+        this.server = server;
+    }
+
+    @Override
+    public void init() throws Exception {
+        server.connect();
+    }
+
+    @Override
+    public WSStats getStats(String name) throws Exception {
+        return server.getStats(name);
+    }
+
+    @Override
+    public WSStats[] getStats(List<String[]> paths, boolean recursive) throws Exception {
+        return server.getStats(paths, recursive);
+    }
+
+    @Override
+    public String getServerName() {
+        return server.getName();
+    }
+
+    @Override
+    public Set<ObjectName> getMBeans(String query) throws Exception {
+        return server.getMBeans(query);
+    }
+
+    @Override
+    public Object getAttribute(ObjectName mbean, String attribute) throws Exception {
+        return server.getAttribute(mbean, attribute);
+    }
+
+}
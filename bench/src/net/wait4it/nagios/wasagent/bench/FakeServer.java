@@ -0,0 +1,231 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.wait4it.nagios.wasagent.bench;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+import com.ibm.websphere.pmi.stat.WSDynamicCacheStats;
+import com.ibm.websphere.pmi.stat.WSEJBStats;
+import com.ibm.websphere.pmi.stat.WSJCAConnectionPoolStats;
+import com.ibm.websphere.pmi.stat.WSJDBCConnectionPoolStats;
+import com.ibm.websphere.pmi.stat.WSJTAStats;
+import com.ibm.websphere.pmi.stat.WSJVMStats;
+import com.ibm.websphere.pmi.stat.WSSessionManagementStats;
+import com.ibm.websphere.pmi.stat.WSStats;
+import com.ibm.websphere.pmi.stat.WSThreadPoolStats;
+import com.ibm.websphere.pmi.stat.WSWebAppStats;
+
+/**
+ * A synthetic WAS instance: the PMI stats trees and
+ * the MBeans queried by the tests.
+ *
+ * The size of the server is the number of instances of
+ * each kind (data sources, connection factories, thread
+ * pools, web applications, servlets, caches, EJBs and
+ * SIB queues). Applications hold 10 servlets or 10 EJBs
+ * each, and EJBs have 2 methods each. Each application
+ * also holds a message driven bean, bound to its own
+ * activation specification (one endpoint in 7 is paused).
+ *
+ * Each remote call (connection, stats query, MBean query
+ * or attribute) may take some time and fail, to simulate
+ * a busy server or an unreliable network.
+ */
+public final class FakeServer implements Backend {
+
+    private final String name;
+    private final long latency;
+    private final double failures;
+    private final Random random = new Random();
+    private final Map<String,WSStats> modules = new HashMap<String,WSStats>();
+    private final Map<ObjectName,Map<String,Object>> mbeans = new HashMap<ObjectName,Map<String,Object>>();
+    private final ConcurrentMap<String,Set<ObjectName>> queries = new ConcurrentHashMap<String,Set<ObjectName>>();
+
+    /**
+     * @param name  the server logical name
+     * @param nodes the number of instances of each kind
+     */
+    public FakeServer(String name, int nodes) {
+        this(name, nodes, 0, 0);
+    }
+
+    /**
+     * @param name     the server logical name
+     * @param nodes    the number of instances of each kind
+     * @param latency  the duration of a remote call (ms)
+     * @param failures the rate of failed remote calls (0 to 1)
+     */
+    public FakeServer(String name, int nodes, long latency, double failures) {
+        this.name = name;
+        this.latency = latency;
+        this.failures = failures;
+
+        List<WSStats> sources = new ArrayList<WSStats>();
+        List<WSStats> factories = new ArrayList<WSStats>();
+        List<WSStats> pools = new ArrayList<WSStats>();
+        List<WSStats> sessions = new ArrayList<WSStats>();
+        List<WSStats> caches = new ArrayList<WSStats>();
+        for (int i = 0; i < nodes; i++) {
+            sources.add(FakeStats.node("jdbc/ds" + i));
+            factories.add(FakeStats.node("jms/cf" + i));
+            pools.add(FakeStats.node("pool" + i));
+            sessions.add(FakeStats.node("app" + i + "#web" + i + ".war"));
+            caches.add(FakeStats.node("cache" + i));
+        }
+        modules.put(WSJDBCConnectionPoolStats.NAME, FakeStats.node(WSJDBCConnectionPoolStats.NAME,
+                FakeStats.node("Derby JDBC Provider", sources)));
+        modules.put(WSJCAConnectionPoolStats.NAME, FakeStats.node(WSJCAConnectionPoolStats.NAME,
+                FakeStats.node("SIB JMS Resource Adapter", factories)));
+        modules.put(WSThreadPoolStats.NAME, FakeStats.node(WSThreadPoolStats.NAME, pools));
+        modules.put(WSSessionManagementStats.NAME, FakeStats.node(WSSessionManagementStats.NAME, sessions));
+        modules.put(WSDynamicCacheStats.NAME, FakeStats.node(WSDynamicCacheStats.NAME, caches));
+        modules.put(WSJVMStats.NAME, FakeStats.node(WSJVMStats.NAME));
+        modules.put(WSJTAStats.NAME, FakeStats.node(WSJTAStats.NAME));
+
+        // Applications with 10 servlets or 10 EJBs each
+        List<WSStats> webapps = new ArrayList<WSStats>();
+        List<WSStats> ejbModules = new ArrayList<WSStats>();
+        for (int i = 0; i * 10 < nodes; i++) {
+            List<WSStats> servlets = new ArrayList<WSStats>();
+            List<WSStats> beans = new ArrayList<WSStats>();
+            for (int j = 0; j < 10 && i * 10 + j < nodes; j++) {
+                servlets.add(FakeStats.node("Servlet" + i + "_" + j));
+                String bean = "Bean" + i + "_" + j;
+                beans.add(FakeStats.node(bean, FakeStats.node("methods",
+                        FakeStats.node("get(java.lang.String)"), FakeStats.node("update(java.lang.Object)"))));
+                register("WebSphere:type=StatelessSessionBean,name=" + bean
+                        + ",Application=app" + i + ",EJBModule=ejb" + i + ".jar,process=" + name);
+            }
+
+            // One message driven bean per application, bound to its own activation spec
+            String mdb = "Listener" + i;
+            beans.add(FakeStats.node(mdb));
+            register("WebSphere:type=MessageDrivenBean,name=" + mdb
+                    + ",Application=app" + i + ",EJBModule=ejb" + i + ".jar,process=" + name);
+            register("WebSphere:type=J2CMessageEndpoint,name=" + mdb + "_endpoint,MessageDrivenBean=app" + i
+                    + "#ejb" + i + ".jar#" + mdb + ",ActivationSpec=jms/as" + i + ",process=" + name)
+                    .put("status", Integer.valueOf(i % 7 == 6 ? 2 : 1));
+            Map<String,Object> spec = register("WebSphere:type=J2CActivationSpec,name=as" + i + ",process=" + name);
+            spec.put("jndiName", "jms/as" + i);
+            spec.put("maxConcurrency", Integer.valueOf(10));
+            webapps.add(FakeStats.node("app" + i + "#web" + i + ".war", FakeStats.node("Servlets", servlets)));
+            ejbModules.add(FakeStats.node("app" + i + "#ejb" + i + ".jar", beans));
+        }
+        modules.put(WSWebAppStats.NAME, FakeStats.node(WSWebAppStats.NAME, webapps));
+        modules.put(WSEJBStats.NAME, FakeStats.node(WSEJBStats.NAME, ejbModules));
+
+        // SIB queue points and listener ports
+        for (int i = 0; i < nodes; i++) {
+            Map<String,Object> attributes = register("WebSphere:type=SIBQueuePoint,name=queue" + i + "@bus,process=" + name);
+            attributes.put("identifier", "queue" + i);
+            attributes.put("depth", Long.valueOf(i % 100));
+        }
+        register("WebSphere:type=ListenerPort,name=lp0,process=" + name).put("started", Boolean.TRUE);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void connect() throws IOException {
+        call();
+    }
+
+    public WSStats getStats(String module) throws IOException {
+        call();
+        return modules.get(module);
+    }
+
+    public WSStats[] getStats(List<String[]> paths, boolean recursive) throws IOException {
+        call();
+        WSStats[] stats = new WSStats[paths.size()];
+        for (int i = 0; i < stats.length; i++) {
+            String[] path = paths.get(i);
+            stats[i] = modules.get(path[0]);
+            for (int j = 1; j < path.length && stats[i] != null; j++) {
+                stats[i] = stats[i].getStats(path[j]);
+            }
+        }
+        return stats;
+    }
+
+    public Set<ObjectName> getMBeans(String query) throws IOException, MalformedObjectNameException {
+        call();
+        Set<ObjectName> result = queries.get(query);
+        if (result == null) {
+            ObjectName pattern = new ObjectName(query);
+            result = new HashSet<ObjectName>();
+            for (ObjectName mbean : mbeans.keySet()) {
+                if (pattern.apply(mbean)) {
+                    result.add(mbean);
+                }
+            }
+            result = Collections.unmodifiableSet(result);
+            queries.put(query, result);
+        }
+        return result;
+    }
+
+    public Object getAttribute(ObjectName mbean, String attribute) throws IOException {
+        call();
+        Map<String,Object> attributes = mbeans.get(mbean);
+        return attributes == null ? null : attributes.get(attribute);
+    }
+
+    /*
+     * Simulates a remote call, which fails now and then.
+     */
+    private void call() throws IOException {
+        if (latency > 0) {
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (failures > 0 && random.nextDouble() < failures) {
+            throw new ConnectException("simulated failure of " + name);
+        }
+    }
+
+    private Map<String,Object> register(String mbean) {
+        Map<String,Object> attributes = new HashMap<String,Object>();
+        try {
+            mbeans.put(new ObjectName(mbean), attributes);
+        } catch (MalformedObjectNameException e) {
+            throw new IllegalArgumentException(e);
+        }
+        return attributes;
+    }
+
+}
@@ -0,0 +1,56 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.wait4it.nagios.wasagent.bench;
+
+import net.wait4it.nagios.wasagent.core.Cluster;
+import net.wait4it.nagios.wasagent.core.WASServlet;
+import net.wait4it.nagios.wasagent.core.WASStatsManager;
+
+/**
+ * The agent servlet, with a stats manager querying
+ * the simulated WAS instances of a fake cell.
+ */
+@SuppressWarnings("serial")
+public class FakeServlet extends WASServlet {
+
+    private final FakeCell cell;
+
+    /**
+     * @param cell the simulated WAS instances
+     */
+    public FakeServlet(FakeCell cell) {
+        this(cell, null);
+    }
+
+    /**
+     * @param cell    the simulated WAS instances
+     * @param cluster the agents sharing the instances, null for a single agent
+     */
+    public FakeServlet(FakeCell cell, Cluster cluster) {
+        super(cluster);
+        this.cell = cell;
+    }
+
+    @Override
+    protected WASStatsManager createManager() {
+        return new FakeManager(cell);
+    }
+
+}
@@ -0,0 +1,200 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.wait4it.nagios.wasagent.bench;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+
+import com.ibm.websphere.pmi.stat.WSBoundedRangeStatistic;
+import com.ibm.websphere.pmi.stat.WSCountStatistic;
+import com.ibm.websphere.pmi.stat.WSStatistic;
+import com.ibm.websphere.pmi.stat.WSStats;
+import com.ibm.websphere.pmi.stat.WSTimeStatistic;
+
+/**
+ * Stand-in implementations of the IBM PMI interfaces,
+ * to build synthetic stats trees.
+ *
+ * Nodes and statistics are dynamic proxies, so they do
+ * not depend on the exact method set of the PMI API
+ * version found in the 'lib' directory. A node holds
+ * the statistics 1 to 64, and a statistic can be read
+ * as a range, bounded range, count, average or time
+ * statistic. Values are derived from the node name and
+ * the statistic identifier: they differ from one
+ * instance to the other, but are the same on each run.
+ * Nodes share their statistics (there are 97 sets of
+ * values), to keep large trees small.
+ */
+public final class FakeStats {
+
+    private static final Class<?>[] NODE = new Class<?>[] {WSStats.class};
+    private static final Class<?>[] STATISTIC = new Class<?>[] {
+        WSBoundedRangeStatistic.class, WSCountStatistic.class, WSTimeStatistic.class
+    };
+
+    // Statistics, by set of values and identifier
+    private static final int VARIANTS = 97;
+    private static final int IDS = 64;
+    private static final WSStatistic[][] TABLE = new WSStatistic[VARIANTS][IDS];
+
+    static {
+        for (int v = 0; v < VARIANTS; v++) {
+            for (int id = 1; id <= IDS; id++) {
+                TABLE[v][id - 1] = (WSStatistic)Proxy.newProxyInstance(FakeStats.class.getClassLoader(), STATISTIC,
+                        new Statistic(id, (v + 1) * 0x9E3779B1 + id * 31));
+            }
+        }
+    }
+
+    private FakeStats() {
+    }
+
+    /**
+     * Builds a stats node.
+     *
+     * @param  name     the node name
+     * @param  children the node children
+     * @return the stats node
+     */
+    public static WSStats node(String name, List<WSStats> children) {
+        return node(name, children.toArray(new WSStats[children.size()]));
+    }
+
+    /**
+     * Builds a stats node.
+     *
+     * @param  name     the node name
+     * @param  children the node children
+     * @return the stats node
+     */
+    public static WSStats node(String name, WSStats... children) {
+        return (WSStats)Proxy.newProxyInstance(FakeStats.class.getClassLoader(), NODE, new Node(name, children));
+    }
+
+    /*
+     * Default value of a method we do not care about.
+     */
+    private static Object empty(Class<?> type) {
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == int.class) {
+            return Integer.valueOf(0);
+        } else if (type == long.class) {
+            return Long.valueOf(0);
+        } else if (type == double.class) {
+            return Double.valueOf(0);
+        } else if (type == float.class) {
+            return Float.valueOf(0);
+        }
+        return null;
+    }
+
+    /*
+     * Object methods of a proxy.
+     */
+    private static Object object(Object proxy, Method method, Object[] args, String name) {
+        if (method.getName().equals("equals")) {
+            return Boolean.valueOf(proxy == args[0]);
+        } else if (method.getName().equals("hashCode")) {
+            return Integer.valueOf(System.identityHashCode(proxy));
+        }
+        return name;
+    }
+
+    private static final class Node implements InvocationHandler {
+
+        private final String name;
+        private final WSStats[] children;
+        private final WSStatistic[] statistics;
+
+        Node(String name, WSStats[] children) {
+            this.name = name;
+            this.children = children;
+            this.statistics = TABLE[(name.hashCode() & 0x7FFFFFFF) % VARIANTS];
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String m = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+                return object(proxy, method, args, name);
+            } else if (m.equals("getName")) {
+                return name;
+            } else if (m.equals("getSubStats")) {
+                return children.clone();
+            } else if (m.equals("getStats")) {
+                for (WSStats child : children) {
+                    if (child.getName().equals(args[0])) {
+                        return child;
+                    }
+                }
+                return null;
+            } else if (m.equals("getStatistic") && args[0] instanceof Integer) {
+                int id = ((Integer)args[0]).intValue();
+                return id >= 1 && id <= IDS ? statistics[id - 1] : null;
+            } else if (m.equals("getStatistics")) {
+                return statistics.clone();
+            } else if (m.equals("numStatistics")) {
+                return Integer.valueOf(statistics.length);
+            }
+            return empty(method.getReturnType());
+        }
+
+    }
+
+    private static final class Statistic implements InvocationHandler {
+
+        private final int id;
+        private final long current;
+        private final long count;
+        private final long total;
+
+        Statistic(int id, int seed) {
+            seed &= 0x7FFFFFFF;
+            this.id = id;
+            this.current = seed % 80;
+            this.count = 1000 + seed % 1000;
+            this.total = count * (1 + seed % 200);
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String m = method.getName();
+            if (method.getDeclaringClass() == Object.class) {
+                return object(proxy, method, args, "statistic " + id);
+            } else if (m.equals("getId")) {
+                return Integer.valueOf(id);
+            } else if (m.equals("getCurrent") || m.equals("getHighWaterMark")) {
+                return Long.valueOf(current);
+            } else if (m.equals("getUpperBound")) {
+                return Long.valueOf(100);
+            } else if (m.equals("getCount")) {
+                return Long.valueOf(count);
+            } else if (m.equals("getTotal") || m.equals("getTotalTime")) {
+                return Long.valueOf(total);
+            } else if (m.equals("getMean")) {
+                return Double.valueOf((double)total / count);
+            }
+            return empty(method.getReturnType());
+        }
+
+    }
+
+}
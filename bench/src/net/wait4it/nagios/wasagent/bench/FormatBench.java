@@ -0,0 +1,80 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.wait4it.nagios.wasagent.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.wait4it.nagios.wasagent.tests.TestUtils;
+
+/**
+ * Formatting of N performance data items and
+ * alert messages.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FormatBench {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int nodes;
+
+    private final TestUtils utils = new TestUtils() {};
+    private List<String> output;
+    private List<String> messages;
+
+    @Setup
+    public void setup() {
+        output = new ArrayList<String>();
+        messages = new ArrayList<String>();
+        // Unsorted, as the tests produce them
+        for (int i = nodes - 1; i >= 0; i--) {
+            output.add("jdbc-jdbc/ds" + i + "-activeCount=" + (i % 80) + ";40;60;0;100");
+            messages.add("'jdbc/ds" + i + "' (" + (i % 80) + "%)");
+        }
+    }
+
+    @Benchmark
+    public String formatOut() {
+        return utils.formatOut(output);
+    }
+
+    @Benchmark
+    public String formatMsg() {
+        return utils.formatMsg("JDBC pool usage: ", messages);
+    }
+
+}
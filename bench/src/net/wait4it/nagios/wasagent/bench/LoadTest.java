@@ -0,0 +1,469 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.wait4it.nagios.wasagent.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.eclipse.jetty.server.Server;
+
+import net.wait4it.nagios.wasagent.core.Cluster;
+import net.wait4it.nagios.wasagent.core.WASAgent;
+
+/**
+ * A load test of the whole agent: the Jetty container
+ * and the agent servlet, as set up by {@link WASAgent},
+ * in front of a fake cell, and a fleet of Nagios
+ * pollers sending HTTP checks.
+ *
+ * The test runs one step per number of poller threads,
+ * and reports for each step:
+ *
+ *   - the throughput (checks per second)
+ *   - the p50, p99, p999 and maximum latency (ms)
+ *   - the transport errors and UNKNOWN results
+ *   - the peak heap usage and agent thread count
+ *
+ * Each step is followed by the queue statistics of the
+ * priority classes of the (first) agent: the wait of the
+ * checks in each queue and the rejected checks. The sweeps
+ * of the default check mix are bulk work.
+ *
+ * The heap is shared with the pollers, and the thread
+ * count leaves the pollers out. When a check rate is
+ * given, pollers send checks on schedule and latencies
+ * are measured from the scheduled time, so a saturated
+ * agent does not hide its queueing delay.
+ *
+ * Options ('-name value'):
+ *
+ *   -servers  number of WAS instances (20)
+ *   -nodes    instances of each kind per server (10,1000)
+ *   -latency  duration of a remote call, ms (5,50)
+ *   -failures rate of failed remote calls (0)
+ *   -threads  poller threads, one step each (1,2,4,8,16,32,64)
+ *   -rate     checks per second, 0 for back to back checks (0)
+ *   -warmup   step warmup, s (5)
+ *   -duration step measurement, s (20)
+ *   -mix      check mix file, 'weight query' lines (built-in)
+ *   -replay   capture files directory, replaces the synthetic
+ *             servers by the recorded ones (see ReplayServer)
+ *   -speed    replay speed, 1 for the original timing (1)
+ *   -agents   number of agents sharing the targets (1), see
+ *             Cluster; pollers spread their checks over them
+ *   -redirect true to redirect the checks to the owner agent
+ *             instead of forwarding them (false)
+ *   -down     agents stopped after the first step (0), to
+ *             see the targets move to the other agents
+ *
+ * Server settings given as 'min,max' are spread evenly
+ * over the servers, from the first one to the last one.
+ *
+ * Agents run in the same JVM, on local ports: they share
+ * the collector state (samples, scheduler, discovery),
+ * but each one only queries the targets it owns.
+ */
+public final class LoadTest {
+
+    // Default check mix: weight and query parameters
+    private static final String[] MIX = {
+        "30 jvm=heap,80,90",
+        "10 gc=gc,5,10",
+        "15 thread-pool=*,80,90",
+        "15 jdbc=*,80,90",
+        "10 jta=jta,100,200",
+        "5 jms=*,80,90",
+        "5 sib-queue=*,1000,5000",
+        "5 application=*,500,1000",
+        "3 servlet=*,1000,2000&top=10&maxsize=8192&priority=bulk",
+        "2 ejb=*,1000,2000&top=10&maxsize=8192&priority=bulk"
+    };
+
+    private LoadTest() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String,String> options = new HashMap<String,String>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^-", ""), args[i + 1]);
+        }
+
+        // The fake cell
+        FakeCell cell = new FakeCell();
+        if (options.containsKey("replay")) {
+            replay(cell, new File(options.get("replay")), Double.parseDouble(option(options, "speed", "1")));
+        } else {
+            int servers = Integer.parseInt(option(options, "servers", "20"));
+            for (int i = 0; i < servers; i++) {
+                int nodes = (int)spread(option(options, "nodes", "10,1000"), i, servers);
+                long latency = (long)spread(option(options, "latency", "5,50"), i, servers);
+                double failures = spread(option(options, "failures", "0"), i, servers);
+                cell.add("was" + i + ":8880", new FakeServer("server" + i, nodes, latency, failures));
+            }
+        }
+
+        List<String> checks = new ArrayList<String>();
+        List<Integer> weights = new ArrayList<Integer>();
+        mix(options.get("mix"), checks, weights);
+
+        long rate = Long.parseLong(option(options, "rate", "0"));
+        long warmup = Long.parseLong(option(options, "warmup", "5")) * 1000;
+        long duration = Long.parseLong(option(options, "duration", "20")) * 1000;
+
+        // The agents, sharing the targets if there are several
+        int count = Integer.parseInt(option(options, "agents", "1"));
+        boolean redirect = Boolean.parseBoolean(option(options, "redirect", "false"));
+        List<String> peers = new ArrayList<String>();
+        for (int port : ports(count)) {
+            peers.add("127.0.0.1:" + port);
+        }
+        List<Server> agents = new ArrayList<Server>();
+        List<Cluster> clusters = new ArrayList<Cluster>();
+        List<String> urls = new ArrayList<String>();
+        for (String peer : peers) {
+            Cluster cluster = count > 1 ? new Cluster(peer, peers, redirect) : null;
+            Server agent = WASAgent.createServer("127.0.0.1", Integer.parseInt(peer.substring(peer.indexOf(':') + 1)),
+                    new FakeServlet(cell, cluster));
+            agent.start();
+            if (cluster != null) {
+                cluster.start();
+            }
+            agents.add(agent);
+            clusters.add(cluster);
+            urls.add("http://" + peer + "/wasagent/WASAgent?");
+        }
+        int down = Integer.parseInt(option(options, "down", "0"));
+
+        System.out.println(String.format("%7s %9s %8s %8s %8s %8s %7s %7s %7s %7s",
+                "threads", "checks/s", "p50", "p99", "p999", "max", "errors", "unknown", "heap", "agent"));
+        boolean first = true;
+        for (String threads : option(options, "threads", "1,2,4,8,16,32,64").split(",")) {
+            if (! first) {
+                // Stops the last agents, the others take their targets over
+                for (; down > 0 && agents.size() > 1; down--) {
+                    int last = agents.size() - 1;
+                    agents.remove(last).stop();
+                    if (clusters.get(last) != null) {
+                        clusters.remove(last).stop();
+                    }
+                    urls.remove(last);
+                }
+            }
+            first = false;
+            step(Integer.parseInt(threads.trim()), urls, cell.getTargets(), checks, weights, rate, warmup, duration);
+            System.out.println("        " + queues(urls.get(0)));
+        }
+
+        for (int i = 0; i < agents.size(); i++) {
+            agents.get(i).stop();
+            if (clusters.get(i) != null) {
+                clusters.get(i).stop();
+            }
+        }
+    }
+
+    /*
+     * The queue statistics of an agent, see Priority.
+     */
+    private static String queues(String url) throws IOException {
+        URL queues = new URL(url.substring(0, url.lastIndexOf('/')) + "/queues");
+        BufferedReader reader = new BufferedReader(new InputStreamReader(queues.openStream(), "UTF-8"));
+        try {
+            String line = reader.readLine();
+            return line.substring(line.lastIndexOf('|') + 1);
+        } finally {
+            reader.close();
+        }
+    }
+
+    /*
+     * Free local ports for the agents.
+     */
+    private static int[] ports(int count) throws IOException {
+        ServerSocket[] sockets = new ServerSocket[count];
+        int[] ports = new int[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                sockets[i] = new ServerSocket(0);
+                ports[i] = sockets[i].getLocalPort();
+            }
+        } finally {
+            for (ServerSocket socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+        return ports;
+    }
+
+    /*
+     * Runs the pollers for one step, and prints the step report.
+     */
+    private static void step(int threads, List<String> urls, List<String> targets, List<String> checks, List<Integer> weights,
+            long rate, long warmup, long duration) throws InterruptedException {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        ThreadMXBean runtime = ManagementFactory.getThreadMXBean();
+
+        long start = System.currentTimeMillis() + warmup;
+        long end = start + duration;
+        Poller[] pollers = new Poller[threads];
+        for (int i = 0; i < threads; i++) {
+            pollers[i] = new Poller(urls.get(i % urls.size()), targets, checks, weights, rate > 0 ? threads * 1000000000L / rate : 0, start, end);
+            pollers[i].start();
+        }
+
+        // Peak heap usage and agent threads
+        long heap = 0;
+        int agentThreads = 0;
+        while (System.currentTimeMillis() < end) {
+            Thread.sleep(100);
+            if (System.currentTimeMillis() >= start) {
+                heap = Math.max(heap, memory.getHeapMemoryUsage().getUsed());
+                agentThreads = Math.max(agentThreads, runtime.getThreadCount() - threads - 1);
+            }
+        }
+
+        int count = 0, errors = 0, unknown = 0;
+        for (Poller poller : pollers) {
+            poller.join();
+            count += poller.count;
+            errors += poller.errors;
+            unknown += poller.unknown;
+        }
+        long[] latencies = new long[count];
+        int n = 0;
+        for (Poller poller : pollers) {
+            System.arraycopy(poller.latencies, 0, latencies, n, poller.count);
+            n += poller.count;
+        }
+        Arrays.sort(latencies);
+
+        System.out.println(String.format("%7d %9.1f %8s %8s %8s %8s %7d %7d %6dM %7d",
+                threads, count * 1000D / duration,
+                percentile(latencies, 0.5), percentile(latencies, 0.99), percentile(latencies, 0.999),
+                percentile(latencies, 1), errors, unknown, heap >> 20, agentThreads));
+    }
+
+    /*
+     * A latency percentile (ms), from sorted latencies (us).
+     */
+    private static String percentile(long[] latencies, double p) {
+        if (latencies.length == 0) {
+            return "-";
+        }
+        int i = Math.max((int)Math.ceil(p * latencies.length) - 1, 0);
+        return String.format("%.1f", latencies[i] / 1000D);
+    }
+
+    /*
+     * Adds a replayed server for each capture file.
+     */
+    private static void replay(FakeCell cell, File directory, double speed) throws Exception {
+        File[] files = directory.listFiles();
+        int servers = 0;
+        for (File file : files == null ? new File[0] : files) {
+            if (file.getName().endsWith(".cap")) {
+                cell.add("was" + servers++ + ":8880", new ReplayServer(file, speed));
+            }
+        }
+        if (servers == 0) {
+            throw new IllegalArgumentException("no capture file in " + directory);
+        }
+    }
+
+    /*
+     * A server setting, spread over the servers when
+     * given as 'min,max'.
+     */
+    private static double spread(String setting, int i, int n) {
+        String[] fields = setting.split(",");
+        double min = Double.parseDouble(fields[0].trim());
+        if (fields.length == 1 || n == 1) {
+            return min;
+        }
+        double max = Double.parseDouble(fields[1].trim());
+        return min + (max - min) * i / (n - 1);
+    }
+
+    private static String option(Map<String,String> options, String name, String value) {
+        return options.containsKey(name) ? options.get(name) : value;
+    }
+
+    /*
+     * Loads the check mix, skipping comments and blank lines.
+     */
+    private static void mix(String file, List<String> checks, List<Integer> weights) throws IOException {
+        List<String> lines = new ArrayList<String>(Arrays.asList(MIX));
+        if (file != null) {
+            lines.clear();
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(line);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        for (String line : lines) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#")) {
+                continue;
+            }
+            String[] fields = line.split("\\s+", 2);
+            weights.add(Integer.valueOf(fields[0]));
+            checks.add(fields[1]);
+        }
+        if (checks.isEmpty()) {
+            throw new IllegalArgumentException("empty check mix");
+        }
+    }
+
+    /*
+     * A Nagios poller: sends checks for random targets,
+     * picked from the check mix by weight. Each check
+     * opens a new connection, as a Nagios plugin would.
+     */
+    private static final class Poller extends Thread {
+
+        private final String url;
+        private final List<String> targets;
+        private final List<String> checks;
+        private final int[] weights;
+        private final long interval;
+        private final long start;
+        private final long end;
+        private final Random random = new Random();
+
+        long[] latencies = new long[1024];
+        int count = 0;
+        int errors = 0;
+        int unknown = 0;
+
+        Poller(String url, List<String> targets, List<String> checks, List<Integer> weights, long interval, long start, long end) {
+            super("poller");
+            this.url = url;
+            this.targets = targets;
+            this.checks = checks;
+            this.weights = new int[weights.size()];
+            for (int i = 0, total = 0; i < this.weights.length; i++) {
+                total += weights.get(i).intValue();
+                this.weights[i] = total;
+            }
+            this.interval = interval;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public void run() {
+            long next = System.nanoTime() + (interval > 0 ? (long)(random.nextDouble() * interval) : 0);
+            while (System.currentTimeMillis() < end) {
+                if (interval > 0) {
+                    long delay = next - System.nanoTime();
+                    if (delay > 0) {
+                        try {
+                            Thread.sleep(delay / 1000000, (int)(delay % 1000000));
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                } else {
+                    next = System.nanoTime();
+                }
+                boolean measured = System.currentTimeMillis() >= start;
+
+                int code = check();
+
+                if (measured && System.currentTimeMillis() < end) {
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    latencies[count++] = (System.nanoTime() - next) / 1000;
+                    if (code < 0) {
+                        errors++;
+                    } else if (code == 3) {
+                        unknown++;
+                    }
+                }
+                next += interval;
+            }
+        }
+
+        /*
+         * Sends one check, and returns its Nagios code,
+         * or -1 if the check failed.
+         */
+        private int check() {
+            String target = targets.get(random.nextInt(targets.size()));
+            int pick = random.nextInt(weights[weights.length - 1]);
+            int i = 0;
+            while (weights[i] <= pick) {
+                i++;
+            }
+            String query = "hostname=" + target.substring(0, target.indexOf(':'))
+                    + "&port=" + target.substring(target.indexOf(':') + 1) + "&" + checks.get(i);
+
+            try {
+                HttpURLConnection connection = (HttpURLConnection)new URL(url + query).openConnection();
+                connection.setRequestProperty("Connection", "close");
+                connection.setConnectTimeout(10000);
+                connection.setReadTimeout(60000);
+                if (connection.getResponseCode() != HttpURLConnection.HTTP_OK) {
+                    connection.disconnect();
+                    return -1;
+                }
+                InputStream in = connection.getInputStream();
+                try {
+                    int code = in.read() - '0';
+                    byte[] buffer = new byte[8192];
+                    while (in.read(buffer) >= 0) {
+                        // Reads the whole output
+                    }
+                    return code >= 0 && code <= 3 ? code : -1;
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                return -1;
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,99 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.wait4it.nagios.wasagent.bench;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A whole check: several tests run by the stats
+ * manager, and their results aggregated in a single
+ * plugin output, with and without output limits.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ManagerBench {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int nodes;
+
+    @Param({"false", "true"})
+    public boolean limited;
+
+    private FakeCell cell;
+    private Map<String,String> params;
+
+    @Setup
+    public void setup() {
+        cell = cell(nodes);
+        params = params(limited);
+    }
+
+    @Benchmark
+    public String process() {
+        return new FakeManager(cell).process(params);
+    }
+
+    /*
+     * A single WAS instance, the target of the check.
+     */
+    static FakeCell cell(int nodes) {
+        FakeCell cell = new FakeCell();
+        cell.add("bench:8880", new FakeServer("server1", nodes));
+        return cell;
+    }
+
+    /*
+     * A typical check, optionally with the worst
+     * instances only and a Nagios sized output.
+     */
+    static Map<String,String> params(boolean limited) {
+        Map<String,String> params = new HashMap<String,String>();
+        params.put("hostname", "bench");
+        params.put("port", "8880");
+        params.put("jvm", TestBench.params("jvm"));
+        params.put("thread-pool", TestBench.params("thread-pool"));
+        params.put("jdbc", TestBench.params("jdbc"));
+        params.put("servlet", TestBench.params("servlet"));
+        if (limited) {
+            params.put("top", "10");
+            params.put("maxsize", "8192");
+        }
+        return params;
+    }
+
+}
@@ -0,0 +1,104 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.wait4it.nagios.wasagent.bench;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import net.wait4it.nagios.wasagent.core.WASClientProxy;
+import net.wait4it.nagios.wasagent.tests.Selector;
+
+/**
+ * Query parameter parsing: the proxy options, the
+ * compilation of a test selector made of N entries,
+ * and the selection of N instance names.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParamsBench {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int nodes;
+
+    private Map<String,String> params;
+    private String query;
+    private String[] names;
+    private Selector selector;
+    private long suffix = 0;
+
+    @Setup
+    public void setup() {
+        params = new HashMap<String,String>();
+        params.put("hostname", "bench");
+        params.put("port", "8880");
+        params.put("top", "20");
+        params.put("maxsize", "8192");
+        params.put("interval", "60,600");
+
+        // Exact names, a glob pattern and an exclusion
+        StringBuilder s = new StringBuilder("jdbc/app*,70,90|!jdbc/DefaultEJBTimerDataSource");
+        names = new String[nodes];
+        for (int i = 0; i < nodes; i++) {
+            names[i] = "jdbc/ds" + i;
+            if (i % 2 == 0) {
+                s.append('|').append(names[i]).append(",80,90");
+            }
+        }
+        query = s.toString();
+        selector = Selector.compile(query);
+    }
+
+    @Benchmark
+    public WASClientProxy proxy() {
+        return new WASClientProxy(params);
+    }
+
+    @Benchmark
+    public Selector compile() {
+        // Selectors are cached by query string
+        return Selector.compile(query + "|!x" + suffix++);
+    }
+
+    @Benchmark
+    public void select(Blackhole bh) {
+        for (String name : names) {
+            bh.consume(selector.select(name));
+        }
+    }
+
+}
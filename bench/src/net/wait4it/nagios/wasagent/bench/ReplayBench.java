@@ -0,0 +1,94 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.wait4it.nagios.wasagent.bench;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.wait4it.nagios.wasagent.core.Option;
+import net.wait4it.nagios.wasagent.core.Result;
+import net.wait4it.nagios.wasagent.core.WASClientProxy;
+import net.wait4it.nagios.wasagent.tests.Test;
+
+/**
+ * The run method of each test, against a WAS instance
+ * replayed from a capture file, without the recorded
+ * call durations: only the parsing and formatting costs
+ * of the tests are measured. The capture file is given
+ * with '-p capture=path'.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReplayBench {
+
+    @Param({""})
+    public String capture;
+
+    @Param({"jvm", "gc", "thread-pool", "jta", "jdbc", "jms", "sib-queue", "application",
+            "servlet", "web-rate", "ejb", "ejb-method", "mdb", "dynacache"})
+    public String test;
+
+    private WASClientProxy proxy;
+    private Test instance;
+    private String params;
+
+    @Setup
+    public void setup() throws Exception {
+        if (capture.length() == 0) {
+            throw new IllegalArgumentException("a capture file is required (-p capture=path)");
+        }
+
+        Map<String,String> query = new HashMap<String,String>();
+        query.put("hostname", "replay");
+        query.put("port", "8880");
+        proxy = new FakeProxy(query, new ReplayServer(new File(capture), 0));
+
+        for (Option option : Option.values()) {
+            if (option.getName().equals(test)) {
+                instance = option.getTest();
+            }
+        }
+        params = TestBench.params(test);
+    }
+
+    @Benchmark
+    public Result run() {
+        return instance.run(proxy, params);
+    }
+
+}
@@ -0,0 +1,160 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.wait4it.nagios.wasagent.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.ObjectName;
+
+import com.ibm.websphere.pmi.stat.WSStats;
+
+import net.wait4it.nagios.wasagent.core.Capture;
+
+/**
+ * A WAS instance replayed from a capture file (see
+ * {@link Capture}).
+ *
+ * The responses to each call (same kind, same arguments)
+ * are given back in the recorded order, and start over
+ * once they have all been used, so counters keep moving
+ * as they did on the real server. Each call takes the
+ * recorded time, scaled by a speed factor (0 to answer
+ * at once), and recorded failures are thrown again.
+ *
+ * The IBM classes of the recorded responses must be
+ * found on the class path.
+ */
+public final class ReplayServer implements Backend {
+
+    private final String name;
+    private final double speed;
+    private final Map<String,Responses> calls = new HashMap<String,Responses>();
+
+    /**
+     * @param  file  the capture file
+     * @param  speed the replay speed (1 for the original
+     *               timing), or 0 to answer at once
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public ReplayServer(File file, double speed) throws IOException, ClassNotFoundException {
+        this.speed = speed;
+
+        Map<String,List<Capture.Record>> records = new HashMap<String,List<Capture.Record>>();
+        String server = null;
+        for (Capture.Record record : Capture.read(file)) {
+            String key = record.getKind() + record.getKey();
+            List<Capture.Record> list = records.get(key);
+            if (list == null) {
+                list = new ArrayList<Capture.Record>();
+                records.put(key, list);
+            }
+            list.add(record);
+
+            // The logical name of the recorded server
+            if (server == null && record.getKind() == Capture.ATTRIBUTE && ! record.isFailed()
+                    && record.getKey().contains("type=Server") && record.getKey().endsWith("\nname")) {
+                server = (String)record.getValue();
+            }
+        }
+        for (Map.Entry<String,List<Capture.Record>> entry : records.entrySet()) {
+            List<Capture.Record> list = entry.getValue();
+            calls.put(entry.getKey(), new Responses(list.toArray(new Capture.Record[list.size()])));
+        }
+
+        this.name = server != null ? server : file.getName().replaceFirst("\\.cap$", "");
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void connect() throws Exception {
+        replay(Capture.CONNECT, "");
+    }
+
+    public WSStats getStats(String module) throws Exception {
+        return (WSStats)replay(Capture.STATS, module);
+    }
+
+    public WSStats[] getStats(List<String[]> paths, boolean recursive) throws Exception {
+        return (WSStats[])replay(Capture.STATS_ARRAY, Capture.key(paths, recursive));
+    }
+
+    @SuppressWarnings("unchecked")
+    public Set<ObjectName> getMBeans(String query) throws Exception {
+        return (Set<ObjectName>)replay(Capture.QUERY, query);
+    }
+
+    public Object getAttribute(ObjectName mbean, String attribute) throws Exception {
+        return replay(Capture.ATTRIBUTE, Capture.key(mbean.getCanonicalName(), attribute));
+    }
+
+    /*
+     * Gives back the next recorded response of a call.
+     */
+    private Object replay(byte kind, String key) throws Exception {
+        Responses responses = calls.get(kind + key);
+        if (responses == null) {
+            throw new IOException("no recorded response for '" + key + "'");
+        }
+        Capture.Record record = responses.next();
+
+        if (speed > 0) {
+            long delay = (long)(record.getDuration() / speed);
+            Thread.sleep(delay / 1000000, (int)(delay % 1000000));
+        }
+
+        if (record.isFailed()) {
+            Throwable t = (Throwable)record.getValue();
+            if (t instanceof Exception) {
+                throw (Exception)t;
+            }
+            throw new IOException(t.toString());
+        }
+        return record.getValue();
+    }
+
+    /*
+     * The recorded responses of a call, used in turn.
+     */
+    private static final class Responses {
+
+        private final Capture.Record[] records;
+        private final AtomicInteger next = new AtomicInteger();
+
+        Responses(Capture.Record[] records) {
+            this.records = records;
+        }
+
+        Capture.Record next() {
+            return records[(next.getAndIncrement() & 0x7FFFFFFF) % records.length];
+        }
+
+    }
+
+}
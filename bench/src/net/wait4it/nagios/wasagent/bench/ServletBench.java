@@ -0,0 +1,154 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.wait4it.nagios.wasagent.bench;
+
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The servlet side of a check: request parameters,
+ * stats manager and response writing. The response
+ * body is counted and thrown away.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ServletBench {
+
+    @Param({"10", "100", "1000", "10000"})
+    public int nodes;
+
+    @Param({"false", "true"})
+    public boolean limited;
+
+    private FakeServlet servlet;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+    private Sink sink;
+
+    @Setup
+    public void setup() {
+        servlet = new FakeServlet(ManagerBench.cell(nodes));
+        sink = new Sink();
+        request = request(ManagerBench.params(limited));
+        response = response(new PrintWriter(sink));
+    }
+
+    @Benchmark
+    public long service() throws Exception {
+        servlet.service(request, response);
+        return sink.count;
+    }
+
+    private static HttpServletRequest request(final Map<String,String> params) {
+        return (HttpServletRequest)Proxy.newProxyInstance(ServletBench.class.getClassLoader(),
+                new Class<?>[] {HttpServletRequest.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String m = method.getName();
+                        if (m.equals("getParameterNames")) {
+                            return Collections.enumeration(params.keySet());
+                        } else if (m.equals("getParameter")) {
+                            return params.get(args[0]);
+                        } else if (m.equals("getMethod")) {
+                            return "GET";
+                        } else if (m.equals("getProtocol")) {
+                            return "HTTP/1.1";
+                        } else if (m.equals("getDateHeader") || m.equals("getIntHeader")) {
+                            return method.getReturnType() == long.class ? Long.valueOf(-1) : Integer.valueOf(-1);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    private static HttpServletResponse response(final PrintWriter writer) {
+        return (HttpServletResponse)Proxy.newProxyInstance(ServletBench.class.getClassLoader(),
+                new Class<?>[] {HttpServletResponse.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String m = method.getName();
+                        if (m.equals("getWriter")) {
+                            return writer;
+                        } else if (method.getReturnType() == boolean.class) {
+                            return Boolean.FALSE;
+                        } else if (method.getReturnType() == int.class) {
+                            return Integer.valueOf(0);
+                        }
+                        return null;
+                    }
+                });
+    }
+
+    /*
+     * Counts the characters written.
+     */
+    private static final class Sink extends Writer {
+
+        long count = 0;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(String str, int off, int len) {
+            count += len;
+        }
+
+        @Override
+        public void write(int c) {
+            count++;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+    }
+
+}
@@ -0,0 +1,96 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.wait4it.nagios.wasagent.bench;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.wait4it.nagios.wasagent.core.Option;
+import net.wait4it.nagios.wasagent.core.Result;
+import net.wait4it.nagios.wasagent.core.WASClientProxy;
+import net.wait4it.nagios.wasagent.tests.Test;
+
+/**
+ * The run method of each test, against a synthetic
+ * WAS instance with N instances of each kind.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TestBench {
+
+    @Param({"jvm", "gc", "thread-pool", "jta", "jdbc", "jms", "sib-queue", "application",
+            "servlet", "web-rate", "ejb", "ejb-method", "mdb", "dynacache"})
+    public String test;
+
+    @Param({"10", "100", "1000", "10000"})
+    public int nodes;
+
+    private WASClientProxy proxy;
+    private Test instance;
+    private String params;
+
+    @Setup
+    public void setup() {
+        Map<String,String> query = new HashMap<String,String>();
+        query.put("hostname", "bench");
+        query.put("port", "8880");
+        proxy = new FakeProxy(query, new FakeServer("server1", nodes));
+
+        for (Option option : Option.values()) {
+            if (option.getName().equals(test)) {
+                instance = option.getTest();
+            }
+        }
+        params = params(test);
+    }
+
+    @Benchmark
+    public Result run() {
+        return instance.run(proxy, params);
+    }
+
+    /*
+     * Thresholds which let some instances alert.
+     */
+    static String params(String test) {
+        if (test.equals("jvm") || test.equals("gc") || test.equals("jta")) {
+            return test + ",40,60";
+        }
+        return "*,40,60";
+    }
+
+}
@@ -0,0 +1,279 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.wait4it.nagios.wasagent.core;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Learns the usual value of metrics for a target WAS
+ * instance, for thresholds expressed as a number of
+ * standard deviations (e.g. '3sigma,5sigma').
+ *
+ * Each metric gets an exponentially weighted moving
+ * average and variance, updated on every check. Older
+ * samples fade away, so the baseline follows the daily
+ * load pattern of the server.
+ *
+ * Metrics are found by the identifier of their label
+ * in the global dictionary (see {@link Labels}), and
+ * are given a slot in primitive arrays which hold their
+ * state: once the slot is known, an update is a constant
+ * time operation which does not allocate. Slots of
+ * metrics which have not been updated for a day are
+ * recycled when the arrays are full. A label dropped
+ * from the dictionary comes back with a new identifier,
+ * and the metric then learns its baseline again.
+ */
+public final class Baseline {
+
+    // One baseline per target WAS instance
+    private static final ConcurrentMap<String,Baseline> TARGETS = new ConcurrentHashMap<String,Baseline>();
+
+    // Weight of the last sample
+    private static final double ALPHA = 0.1D;
+
+    // Samples needed before a deviation is reported
+    private static final int WARMUP = 10;
+
+    // Metrics older than this are recycled (ms)
+    private static final long EXPIRY = 86400000L;
+
+    // Metric state, by slot
+    private Labels.Label[] labels = new Labels.Label[64];
+    private double[] means = new double[64];
+    private double[] variances = new double[64];
+    private int[] counts = new int[64];
+    private long[] times = new long[64];
+    private int size = 0;
+
+    // Recycled slots
+    private int[] free = new int[0];
+    private int freeCount = 0;
+
+    // Open addressing index of the label identifiers: slot + 1, 0 for none
+    private int[] index = new int[128];
+
+    /**
+     * Gets the baseline for a target WAS instance.
+     *
+     * @param  target the target identifier (host:port)
+     * @return the target baseline
+     */
+    public static Baseline forTarget(String target) {
+        Baseline baseline = TARGETS.get(target);
+        if (baseline == null) {
+            Baseline created = new Baseline();
+            baseline = TARGETS.putIfAbsent(target, created);
+            if (baseline == null) {
+                baseline = created;
+            }
+        }
+        return baseline;
+    }
+
+    /**
+     * Gets the slot of a metric, allocating a
+     * new one if the metric is unknown.
+     *
+     * @param  key the metric label
+     * @param  now the current time (ms)
+     * @return the metric slot
+     */
+    public synchronized int id(Labels.Label key, long now) {
+        int slot = slot(key);
+        int id = index[slot] - 1;
+
+        if (id < 0) {
+            if (freeCount == 0 && size == labels.length) {
+                recycle(now);
+                slot = slot(key);
+            }
+            id = freeCount > 0 ? free[--freeCount] : size++;
+            labels[id] = key;
+            means[id] = 0;
+            variances[id] = 0;
+            counts[id] = 0;
+            index[slot] = id + 1;
+        }
+
+        times[id] = now;
+        return id;
+    }
+
+    /**
+     * Compares a value to the metric baseline, and adds
+     * the value to the baseline.
+     *
+     * The standard deviation is at least 1 (and 1% of the
+     * mean), so that a flat metric does not alert on the
+     * slightest change.
+     *
+     * @param  id    the metric slot
+     * @param  value the metric current value
+     * @param  now   the sample time (ms)
+     * @return the distance to the baseline mean, in standard
+     *         deviations (negative below the mean), or NaN
+     *         while the baseline is still learning
+     */
+    public synchronized double deviation(int id, double value, long now) {
+        double deviation = Double.NaN;
+        double mean = means[id];
+        double diff = value - mean;
+
+        if (counts[id] >= WARMUP) {
+            double sd = Math.max(Math.sqrt(variances[id]), Math.max(1D, Math.abs(mean) * 0.01D));
+            deviation = diff / sd;
+        }
+
+        // EWMA of the mean and the variance
+        if (counts[id] == 0) {
+            means[id] = value;
+        } else {
+            double increment = ALPHA * diff;
+            means[id] = mean + increment;
+            variances[id] = (1 - ALPHA) * (variances[id] + diff * increment);
+        }
+        if (counts[id] < WARMUP) {
+            counts[id]++;
+        }
+        times[id] = now;
+
+        return deviation;
+    }
+
+    /**
+     * @return the number of known metrics
+     */
+    public synchronized int size() {
+        return size - freeCount;
+    }
+
+    /**
+     * Writes the baselines of all the targets (see {@link Snapshot}).
+     *
+     * @param  out the destination
+     * @throws IOException
+     */
+    static void writeAll(DataOutput out) throws IOException {
+        // Checks may add entries meanwhile, the count must match
+        List<Map.Entry<String,Baseline>> entries = new ArrayList<Map.Entry<String,Baseline>>(TARGETS.entrySet());
+        out.writeInt(entries.size());
+        for (Map.Entry<String,Baseline> entry : entries) {
+            Snapshot.writeString(out, entry.getKey());
+            entry.getValue().write(out);
+        }
+    }
+
+    /**
+     * Reads the baselines written by {@link #writeAll(DataOutput)}.
+     *
+     * @param  in the source
+     * @throws IOException
+     */
+    static void readAll(DataInput in) throws IOException {
+        for (int n = in.readInt(); n > 0; n--) {
+            forTarget(Snapshot.readString(in)).read(in);
+        }
+    }
+
+    private synchronized void write(DataOutput out) throws IOException {
+        out.writeInt(size - freeCount);
+        for (int id = 0; id < size; id++) {
+            if (labels[id] != null) {
+                Snapshot.writeString(out, labels[id].getPrefix());
+                Snapshot.writeString(out, labels[id].getInstance());
+                Snapshot.writeString(out, labels[id].getMetric());
+                out.writeDouble(means[id]);
+                out.writeDouble(variances[id]);
+                out.writeInt(counts[id]);
+                out.writeLong(times[id]);
+            }
+        }
+    }
+
+    private synchronized void read(DataInput in) throws IOException {
+        for (int n = in.readInt(); n > 0; n--) {
+            Labels.Label key = Labels.get(Snapshot.readString(in), Snapshot.readString(in), Snapshot.readString(in));
+            double mean = in.readDouble();
+            double variance = in.readDouble();
+            int count = in.readInt();
+            long time = in.readLong();
+            int id = id(key, time);
+            means[id] = mean;
+            variances[id] = variance;
+            counts[id] = count;
+        }
+    }
+
+    /*
+     * Finds the index slot of a label, or the empty
+     * slot where it should be inserted.
+     */
+    private int slot(Labels.Label key) {
+        int mask = index.length - 1;
+        int h = key.getId() * 0x9E3779B9;
+        int slot = (h ^ (h >>> 16)) & mask;
+        while (index[slot] != 0 && labels[index[slot] - 1].getId() != key.getId()) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /*
+     * Frees the identifiers of the expired metrics, or
+     * doubles the arrays if none has expired. The index
+     * is rebuilt either way.
+     */
+    private void recycle(long now) {
+        free = new int[size];
+        for (int id = 0; id < size; id++) {
+            if (now - times[id] > EXPIRY) {
+                labels[id] = null;
+                free[freeCount++] = id;
+            }
+        }
+
+        if (freeCount == 0) {
+            int capacity = labels.length * 2;
+            labels = Arrays.copyOf(labels, capacity);
+            means = Arrays.copyOf(means, capacity);
+            variances = Arrays.copyOf(variances, capacity);
+            counts = Arrays.copyOf(counts, capacity);
+            times = Arrays.copyOf(times, capacity);
+            index = new int[capacity * 2];
+        } else {
+            Arrays.fill(index, 0);
+        }
+
+        for (int id = 0; id < size; id++) {
+            if (labels[id] != null) {
+                index[slot(labels[id])] = id + 1;
+            }
+        }
+    }
+
+}
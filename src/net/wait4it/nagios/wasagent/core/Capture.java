@@ -0,0 +1,353 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.wait4it.nagios.wasagent.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Records the responses of a target WAS instance, to
+ * replay them later without the target (e.g. to run
+ * the tests against production sized PMI trees on a
+ * development machine).
+ *
+ * Every remote call of the proxy (connection, PMI stats
+ * query, MBean query and attribute) is appended to a
+ * capture file, with its time, its duration and its
+ * serialized response (or exception). Each record is
+ * a separate compressed frame:
+ *
+ *   length (int) deflated(kind, key, time, duration, failed, value)
+ *
+ * so the file can be appended to across agent restarts.
+ * An interrupted agent may leave a torn last frame: the
+ * file is truncated to its last complete frame when it
+ * is opened again (or started over if its header is not
+ * a capture header), and reading stops at the first torn
+ * or implausible frame.
+ *
+ * The capture is enabled by the 'wasagent.record' system
+ * property (the files directory, one file per target).
+ * 'wasagent.record.size' sets the maximum size of a file
+ * (MB, default 100), recording stops once it is reached.
+ */
+public final class Capture {
+
+    /** Record kinds */
+    public static final byte CONNECT = 0;
+    public static final byte STATS = 1;
+    public static final byte STATS_ARRAY = 2;
+    public static final byte QUERY = 3;
+    public static final byte ATTRIBUTE = 4;
+
+    // One capture per target WAS instance
+    private static final ConcurrentMap<String,Capture> TARGETS = new ConcurrentHashMap<String,Capture>();
+
+    // Files directory, null if the capture is disabled
+    private static final String DIRECTORY = System.getProperty("wasagent.record");
+
+    private static final long SIZE = Long.getLong("wasagent.record.size", 100).longValue() << 20;
+
+    // File layout
+    private static final int MAGIC = 0x57415343; // 'WASC'
+    private static final int VERSION = 1;
+    private static final int HEADER = 8;
+
+    private final File file;
+    private long size;
+
+    /**
+     * @return true if the capture is enabled
+     */
+    public static boolean isEnabled() {
+        return DIRECTORY != null;
+    }
+
+    /**
+     * Gets the capture for a target WAS instance.
+     *
+     * @param  target the target identifier (host:port)
+     * @return the target capture
+     */
+    public static Capture forTarget(String target) {
+        Capture capture = TARGETS.get(target);
+        if (capture == null) {
+            String name = target.replaceAll("[^A-Za-z0-9.-]", "_");
+            Capture created = new Capture(new File(DIRECTORY, name + ".cap"));
+            capture = TARGETS.putIfAbsent(target, created);
+            if (capture == null) {
+                capture = created;
+            }
+        }
+        return capture;
+    }
+
+    /**
+     * Builds a record key from its parts.
+     *
+     * @param  parts the call arguments
+     * @return the record key
+     */
+    public static String key(String... parts) {
+        StringBuilder key = new StringBuilder();
+        for (String part : parts) {
+            if (key.length() > 0) {
+                key.append('\n');
+            }
+            key.append(part);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Builds the record key of a PMI stats array query.
+     *
+     * @param  paths     the stats paths
+     * @param  recursive true to fetch the subtree of each node
+     * @return the record key
+     */
+    public static String key(List<String[]> paths, boolean recursive) {
+        String[] parts = new String[paths.size() + 1];
+        parts[0] = String.valueOf(recursive);
+        for (int i = 0; i < paths.size(); i++) {
+            StringBuilder path = new StringBuilder();
+            for (String name : paths.get(i)) {
+                if (path.length() > 0) {
+                    path.append('\t');
+                }
+                path.append(name);
+            }
+            parts[i + 1] = path.toString();
+        }
+        return key(parts);
+    }
+
+    private Capture(File file) {
+        this.file = file;
+        try {
+            this.size = recover(file);
+        } catch (IOException e) {
+            // Never append to a file which could not be checked
+            e.printStackTrace();
+            this.size = SIZE;
+        }
+    }
+
+    /**
+     * Truncates a capture file to its last complete frame,
+     * so that new frames are appended in line.
+     *
+     * @param  file the capture file
+     * @return the file size once truncated
+     * @throws IOException if the file cannot be read or truncated
+     */
+    private static long recover(File file) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            long length = raf.length();
+            long end = 0;
+            if (length >= HEADER && raf.readInt() == MAGIC && raf.readInt() == VERSION) {
+                end = HEADER;
+                while (end + 4 <= length) {
+                    raf.seek(end);
+                    int frame = raf.readInt();
+                    if (!isPlausible(frame) || end + 4 + frame > length) {
+                        break;
+                    }
+                    end += 4 + frame;
+                }
+            }
+            if (end < length) {
+                raf.setLength(end);
+            }
+            return end;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static boolean isPlausible(int frame) {
+        return frame >= 0 && frame <= SIZE;
+    }
+
+    /**
+     * Appends a remote call to the capture file. Errors
+     * are reported, but never fail the check.
+     *
+     * @param kind  the record kind
+     * @param key   the call arguments (see {@link #key(String...)})
+     * @param start the call start ({@link System#nanoTime()})
+     * @param value the call response, or the exception thrown
+     */
+    public void record(byte kind, String key, long start, Object value) {
+        long duration = System.nanoTime() - start;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(new DeflaterOutputStream(bytes));
+            out.writeByte(kind);
+            out.writeUTF(key);
+            out.writeLong(System.currentTimeMillis());
+            out.writeLong(duration);
+            out.writeBoolean(value instanceof Throwable);
+            out.writeObject(value);
+            out.close();
+            write(bytes);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private synchronized void write(ByteArrayOutputStream bytes) throws IOException {
+        if (size >= SIZE) {
+            return;
+        }
+        file.getParentFile().mkdirs();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file, true));
+        try {
+            if (size == 0) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+            }
+            out.writeInt(bytes.size());
+            bytes.writeTo(out);
+        } finally {
+            out.close();
+        }
+        size = file.length();
+    }
+
+    /**
+     * Reads all the records of a capture file.
+     *
+     * @param  file the capture file
+     * @return the records, in call order
+     * @throws IOException if the file is not a capture file
+     * @throws ClassNotFoundException if a response class is missing
+     */
+    public static List<Record> read(File file) throws IOException, ClassNotFoundException {
+        List<Record> records = new ArrayList<Record>();
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(file + " is not a capture file");
+            }
+            while (true) {
+                byte[] frame;
+                try {
+                    int length = in.readInt();
+                    if (!isPlausible(length)) {
+                        break;
+                    }
+                    frame = new byte[length];
+                    in.readFully(frame);
+                } catch (EOFException e) {
+                    break;
+                }
+                ObjectInputStream record = new ObjectInputStream(new InflaterInputStream(new ByteArrayInputStream(frame)));
+                try {
+                    records.add(new Record(record.readByte(), record.readUTF(), record.readLong(), record.readLong(),
+                            record.readBoolean(), record.readObject()));
+                } finally {
+                    record.close();
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return records;
+    }
+
+    /**
+     * A recorded remote call.
+     */
+    public static final class Record {
+
+        private final byte kind;
+        private final String key;
+        private final long time;
+        private final long duration;
+        private final boolean failed;
+        private final Object value;
+
+        Record(byte kind, String key, long time, long duration, boolean failed, Object value) {
+            this.kind = kind;
+            this.key = key;
+            this.time = time;
+            this.duration = duration;
+            this.failed = failed;
+            this.value = value;
+        }
+
+        public byte getKind() {
+            return kind;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        /**
+         * @return the call time (ms)
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * @return the call duration (ns)
+         */
+        public long getDuration() {
+            return duration;
+        }
+
+        /**
+         * @return true if the value is the exception thrown
+         */
+        public boolean isFailed() {
+            return failed;
+        }
+
+        public Object getValue() {
+            return value;
+        }
+
+    }
+
+}
@@ -0,0 +1,318 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.wait4it.nagios.wasagent.core;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Splits the target WAS instances between several agents
+ * sharing the same peer list, so that each agent only
+ * collects its own share of the cell.
+ *
+ * Targets (host:port) are given to the agents through
+ * consistent hashing: every agent is placed 160 times on
+ * a hash ring, and a target belongs to the first agent
+ * found after the target hash. An agent which does not
+ * answer its heartbeat is left out of the ring, and only
+ * its own targets move to the other agents, until it
+ * comes back. Checks of a target owned by a peer are
+ * forwarded to the peer, or the client is redirected to
+ * the peer. If a peer cannot be connected to, it is
+ * considered down and the check is run locally. A peer
+ * which is connected to but does not answer in time is
+ * only slow: the check is reported as UNKNOWN, and the
+ * peer keeps its targets.
+ *
+ * The cluster mode is enabled by the 'wasagent.peers'
+ * system property, the comma separated list of the agents
+ * (host:port of their HTTP connector), including this one.
+ * 'wasagent.self' identifies this agent in the list
+ * (default 'wasagent.host:wasagent.port'). Checks are
+ * forwarded, unless 'wasagent.peers.redirect' is true.
+ * 'wasagent.peers.interval' sets the heartbeat interval
+ * (seconds, default 5).
+ */
+public final class Cluster {
+
+    /** Query parameter set on forwarded and redirected checks */
+    public static final String FORWARDED = "forwarded";
+
+    // Points of each agent on the hash ring
+    private static final int POINTS = 160;
+
+    // Heartbeat and forward timeouts (ms), the read timeout
+    // below the idle time of the agent connector (25 s)
+    private static final int CONNECT_TIMEOUT = 2000;
+    private static final int READ_TIMEOUT = 22000;
+
+    private final String self;
+    private final String[] peers;
+    private final boolean redirect;
+
+    // Hash ring: sorted points, and the peer of each point
+    private final int[] points;
+    private final int[] owners;
+
+    // Peers which did not answer
+    private final ConcurrentMap<String,Boolean> down = new ConcurrentHashMap<String,Boolean>();
+
+    private Timer timer;
+
+    /**
+     * Creates the cluster described by the
+     * 'wasagent.peers' system properties.
+     *
+     * @return the cluster, or null if the cluster mode is disabled
+     */
+    public static Cluster fromProperties() {
+        String peers = System.getProperty("wasagent.peers");
+        if (peers == null || peers.trim().length() == 0) {
+            return null;
+        }
+        String self = System.getProperty("wasagent.self",
+                System.getProperty("wasagent.host") + ":" + System.getProperty("wasagent.port"));
+        return new Cluster(self, Arrays.asList(peers.split(",")), Boolean.getBoolean("wasagent.peers.redirect"));
+    }
+
+    /**
+     * @param self     this agent (host:port)
+     * @param peers    all the agents (host:port), including this one
+     * @param redirect true to redirect the clients, false to forward the checks
+     */
+    public Cluster(String self, List<String> peers, boolean redirect) {
+        List<String> list = new ArrayList<String>();
+        for (String peer : peers) {
+            if (peer.trim().length() > 0 && ! list.contains(peer.trim())) {
+                list.add(peer.trim());
+            }
+        }
+        if (! list.contains(self)) {
+            throw new IllegalArgumentException("'" + self + "' is not in the peer list " + list);
+        }
+        this.self = self;
+        this.peers = list.toArray(new String[list.size()]);
+        this.redirect = redirect;
+
+        // Points are sorted along with their peer
+        long[] ring = new long[this.peers.length * POINTS];
+        for (int p = 0; p < this.peers.length; p++) {
+            for (int i = 0; i < POINTS / 4; i++) {
+                byte[] digest = md5(this.peers[p] + "#" + i);
+                for (int j = 0; j < 4; j++) {
+                    ring[p * POINTS + i * 4 + j] = ((long) point(digest, j) << 32) | p;
+                }
+            }
+        }
+        Arrays.sort(ring);
+        this.points = new int[ring.length];
+        this.owners = new int[ring.length];
+        for (int i = 0; i < ring.length; i++) {
+            this.points[i] = (int) (ring[i] >> 32);
+            this.owners[i] = (int) ring[i];
+        }
+    }
+
+    /**
+     * @return this agent (host:port)
+     */
+    public String getSelf() {
+        return self;
+    }
+
+    /**
+     * @return true if the clients are redirected to the owner
+     *         of their target, false if the checks are forwarded
+     */
+    public boolean isRedirect() {
+        return redirect;
+    }
+
+    /**
+     * Gets the agent which collects a target.
+     *
+     * @param  target the target identifier (host:port)
+     * @return the first live agent after the target on the ring
+     */
+    public String owner(String target) {
+        int hash = point(md5(target), 0);
+        int i = Arrays.binarySearch(points, hash);
+        if (i < 0) {
+            i = -i - 1;
+        }
+        for (int n = 0; n < points.length; n++) {
+            String peer = peers[owners[(i + n) % points.length]];
+            if (isUp(peer)) {
+                return peer;
+            }
+        }
+        return self;
+    }
+
+    /**
+     * @param  peer an agent (host:port)
+     * @return false if the agent did not answer
+     *         its last heartbeat or forwarded check
+     */
+    public boolean isUp(String peer) {
+        return peer.equals(self) || ! down.containsKey(peer);
+    }
+
+    /**
+     * Takes an agent out of the ring until
+     * it answers a heartbeat again.
+     *
+     * @param peer an agent (host:port)
+     */
+    public void setDown(String peer) {
+        if (! peer.equals(self)) {
+            down.put(peer, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Builds the URL of a request to an agent.
+     *
+     * @param  peer   an agent (host:port)
+     * @param  path   the request path, e.g. '/WASAgent'
+     * @param  params the query parameters
+     * @return the request URL, marked as forwarded
+     */
+    public String url(String peer, String path, Map<String,String> params) {
+        StringBuilder url = new StringBuilder("http://").append(peer).append("/wasagent").append(path);
+        url.append('?').append(FORWARDED).append('=').append(encode(self));
+        for (Map.Entry<String,String> param : params.entrySet()) {
+            url.append('&').append(encode(param.getKey())).append('=').append(encode(param.getValue()));
+        }
+        return url.toString();
+    }
+
+    /**
+     * Opens a request to an agent. The request is sent
+     * by the first read of the response.
+     *
+     * @param  peer   an agent (host:port)
+     * @param  path   the request path, e.g. '/WASAgent'
+     * @param  params the query parameters
+     * @return the connection, connected to the agent
+     * @throws IOException if the agent cannot be connected to
+     */
+    public HttpURLConnection open(String peer, String path, Map<String,String> params) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url(peer, path, params)).openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.connect();
+        return connection;
+    }
+
+    /**
+     * Starts the heartbeat of the peers, every
+     * 'wasagent.peers.interval' seconds.
+     */
+    public synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+        long interval = Long.getLong("wasagent.peers.interval", 5).longValue() * 1000;
+        timer = new Timer("wasagent-cluster", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                heartbeat();
+            }
+        }, 0, interval);
+    }
+
+    /**
+     * Stops the heartbeat.
+     */
+    public synchronized void stop() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+
+    /**
+     * Checks that each peer answers, and updates the ring.
+     */
+    public void heartbeat() {
+        for (String peer : peers) {
+            if (peer.equals(self)) {
+                continue;
+            }
+            boolean up = false;
+            try {
+                HttpURLConnection connection = (HttpURLConnection) new URL("http://" + peer + "/wasagent/ping").openConnection();
+                connection.setConnectTimeout(CONNECT_TIMEOUT);
+                connection.setReadTimeout(CONNECT_TIMEOUT);
+                up = connection.getResponseCode() == HttpURLConnection.HTTP_OK;
+                connection.getInputStream().close();
+            } catch (IOException ignored) {
+                // The peer is down
+            }
+            if (up) {
+                down.remove(peer);
+            } else {
+                down.put(peer, Boolean.TRUE);
+            }
+        }
+    }
+
+    private static String encode(String s) {
+        try {
+            return URLEncoder.encode(s, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] md5(String s) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(s.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /*
+     * One of the four ring points of an MD5 digest.
+     */
+    private static int point(byte[] digest, int j) {
+        return ((digest[j * 4] & 0xFF) << 24) | ((digest[j * 4 + 1] & 0xFF) << 16)
+                | ((digest[j * 4 + 2] & 0xFF) << 8) | (digest[j * 4 + 3] & 0xFF);
+    }
+
+}
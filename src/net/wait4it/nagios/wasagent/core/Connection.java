@@ -0,0 +1,126 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.wait4it.nagios.wasagent.core;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ibm.websphere.management.AdminClient;
+import com.ibm.websphere.management.AdminClientFactory;
+
+/**
+ * Keeps one AdminClient per target WAS instance, so that
+ * repeat checks skip the connector setup and the SSL
+ * handshake. The SOAP AdminClient is shared by all the
+ * checks of a target.
+ *
+ * A client which has not been used for a while (15
+ * minutes by default, 'wasagent.connection.idle' system
+ * property, in seconds) is dropped, and the next check
+ * connects again. A client which fails with a connector
+ * error (e.g. the target was restarted or the security
+ * token has expired) is dropped as well, see {@link
+ * WASClientProxy}.
+ */
+public final class Connection {
+
+    // One connection per target WAS instance
+    private static final ConcurrentMap<String,Connection> TARGETS = new ConcurrentHashMap<String,Connection>();
+
+    // Clients idle for longer than this are dropped (ms)
+    private static final long IDLE = Long.getLong("wasagent.connection.idle", 900).longValue() * 1000;
+
+    // Delay between two sweeps of the idle clients (ms)
+    private static final long SWEEP = 60000L;
+    private static final AtomicLong swept = new AtomicLong();
+
+    private AdminClient client;
+    private volatile long used;
+
+    /**
+     * Gets the connection to a target WAS instance.
+     *
+     * @param  target the target identifier (host:port)
+     * @return the target connection
+     */
+    public static Connection forTarget(String target) {
+        long now = System.currentTimeMillis();
+        sweep(now);
+        Connection connection = TARGETS.get(target);
+        if (connection == null) {
+            Connection created = new Connection();
+            connection = TARGETS.putIfAbsent(target, created);
+            if (connection == null) {
+                connection = created;
+            }
+        }
+        connection.used = now;
+        return connection;
+    }
+
+    /*
+     * Drops the clients which have not been used for
+     * a while, at most once a minute. A check which
+     * still holds a dropped client may go on with it.
+     */
+    private static void sweep(long now) {
+        long last = swept.get();
+        if (now - last >= SWEEP && swept.compareAndSet(last, now)) {
+            for (Map.Entry<String,Connection> entry : TARGETS.entrySet()) {
+                if (now - entry.getValue().used >= IDLE) {
+                    TARGETS.remove(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the client of the target, and connects if
+     * there is none. Concurrent checks of a target wait
+     * for a single connection instead of each opening
+     * their own.
+     *
+     * @param  props the connection properties
+     * @return the target client
+     * @throws Exception if the target cannot be reached
+     */
+    public synchronized AdminClient get(Properties props) throws Exception {
+        if (client == null) {
+            client = AdminClientFactory.createAdminClient(props);
+        }
+        return client;
+    }
+
+    /**
+     * Drops a client after a connector error, so that
+     * the next call connects again. A client which has
+     * already been replaced by another check is left.
+     *
+     * @param failed the client which failed
+     */
+    public synchronized void reset(AdminClient failed) {
+        if (client == failed) {
+            client = null;
+        }
+    }
+
+}
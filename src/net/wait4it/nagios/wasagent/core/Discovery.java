@@ -0,0 +1,225 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.wait4it.nagios.wasagent.core;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.MalformedObjectNameException;
+import javax.management.ObjectName;
+
+/**
+ * Caches MBean query results for a target WAS instance.
+ *
+ * The topology of an application server (deployed beans,
+ * queue points...) rarely changes, so there is no need to
+ * run the same 'queryNames' remote call on every check.
+ * Results are kept for ten minutes. Empty results are not
+ * kept, since the MBeans may just not be registered yet
+ * (e.g. while the server starts). Static attributes of
+ * the target (server name, version) are cached the same
+ * way.
+ */
+public final class Discovery {
+
+    // One cache per target WAS instance
+    private static final ConcurrentMap<String,Discovery> TARGETS = new ConcurrentHashMap<String,Discovery>();
+
+    // Query results time to live (ms)
+    private static final long TTL = 600000L;
+
+    private final Map<String,Set<ObjectName>> results = new HashMap<String,Set<ObjectName>>();
+    private final Map<String,Long> times = new HashMap<String,Long>();
+    private final Map<String,String> values = new HashMap<String,String>();
+    private final Map<String,Long> valueTimes = new HashMap<String,Long>();
+
+    /**
+     * Gets the discovery cache for a target WAS instance.
+     *
+     * @param  target the target identifier (host:port)
+     * @return the target discovery cache
+     */
+    public static Discovery forTarget(String target) {
+        Discovery discovery = TARGETS.get(target);
+        if (discovery == null) {
+            Discovery created = new Discovery();
+            discovery = TARGETS.putIfAbsent(target, created);
+            if (discovery == null) {
+                discovery = created;
+            }
+        }
+        return discovery;
+    }
+
+    /**
+     * @param  query an MBean query
+     * @param  now   the current time (ms)
+     * @return the cached query result, or null if
+     *         there is none or if it is too old
+     */
+    public synchronized Set<ObjectName> get(String query, long now) {
+        Long time = times.get(query);
+        if (time == null || now - time.longValue() > TTL) {
+            return null;
+        }
+        return results.get(query);
+    }
+
+    /**
+     * Stores a query result. An empty result is not
+     * stored, and the query is forgotten instead.
+     *
+     * @param query  an MBean query
+     * @param mbeans the query result
+     * @param now    the current time (ms)
+     */
+    public synchronized void put(String query, Set<ObjectName> mbeans, long now) {
+        if (mbeans.isEmpty()) {
+            remove(query);
+            return;
+        }
+        results.put(query, mbeans);
+        times.put(query, Long.valueOf(now));
+    }
+
+    /**
+     * Forgets a query result, e.g. when the MBean it
+     * gave is not found.
+     *
+     * @param query an MBean query
+     */
+    public synchronized void remove(String query) {
+        results.remove(query);
+        times.remove(query);
+    }
+
+    /**
+     * @param  name an attribute name
+     * @param  now  the current time (ms)
+     * @return the cached attribute value, or null if
+     *         there is none or if it is too old
+     */
+    public synchronized String getValue(String name, long now) {
+        Long time = valueTimes.get(name);
+        if (time == null || now - time.longValue() > TTL) {
+            return null;
+        }
+        return values.get(name);
+    }
+
+    /**
+     * Stores an attribute value.
+     *
+     * @param name  an attribute name
+     * @param value the attribute value
+     * @param now   the current time (ms)
+     */
+    public synchronized void putValue(String name, String value, long now) {
+        values.put(name, value);
+        valueTimes.put(name, Long.valueOf(now));
+    }
+
+    /**
+     * Forgets everything about the target, e.g. when
+     * a cached MBean no longer exists.
+     */
+    public synchronized void clear() {
+        results.clear();
+        times.clear();
+        values.clear();
+        valueTimes.clear();
+    }
+
+    /**
+     * Writes the cache of all the targets (see {@link Snapshot}).
+     *
+     * @param  out the destination
+     * @throws IOException
+     */
+    static void writeAll(DataOutput out) throws IOException {
+        // Checks may add entries meanwhile, the count must match
+        List<Map.Entry<String,Discovery>> entries = new ArrayList<Map.Entry<String,Discovery>>(TARGETS.entrySet());
+        out.writeInt(entries.size());
+        for (Map.Entry<String,Discovery> entry : entries) {
+            Snapshot.writeString(out, entry.getKey());
+            entry.getValue().write(out);
+        }
+    }
+
+    /**
+     * Reads the cache written by {@link #writeAll(DataOutput)}.
+     *
+     * @param  in the source
+     * @throws IOException
+     */
+    static void readAll(DataInput in) throws IOException {
+        for (int n = in.readInt(); n > 0; n--) {
+            forTarget(Snapshot.readString(in)).read(in);
+        }
+    }
+
+    private synchronized void write(DataOutput out) throws IOException {
+        out.writeInt(results.size());
+        for (Map.Entry<String,Set<ObjectName>> entry : results.entrySet()) {
+            Snapshot.writeString(out, entry.getKey());
+            out.writeLong(times.get(entry.getKey()).longValue());
+            out.writeInt(entry.getValue().size());
+            for (ObjectName mbean : entry.getValue()) {
+                Snapshot.writeString(out, mbean.getCanonicalName());
+            }
+        }
+        out.writeInt(values.size());
+        for (Map.Entry<String,String> entry : values.entrySet()) {
+            Snapshot.writeString(out, entry.getKey());
+            out.writeLong(valueTimes.get(entry.getKey()).longValue());
+            Snapshot.writeString(out, entry.getValue());
+        }
+    }
+
+    private synchronized void read(DataInput in) throws IOException {
+        for (int n = in.readInt(); n > 0; n--) {
+            String query = Snapshot.readString(in);
+            long time = in.readLong();
+            Set<ObjectName> mbeans = new HashSet<ObjectName>();
+            for (int m = in.readInt(); m > 0; m--) {
+                try {
+                    mbeans.add(new ObjectName(Snapshot.readString(in)));
+                } catch (MalformedObjectNameException e) {
+                    throw new IOException(e.toString());
+                }
+            }
+            put(query, mbeans, time);
+        }
+        for (int n = in.readInt(); n > 0; n--) {
+            String name = Snapshot.readString(in);
+            long time = in.readLong();
+            putValue(name, Snapshot.readString(in), time);
+        }
+    }
+
+}
@@ -0,0 +1,435 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.wait4it.nagios.wasagent.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ibm.websphere.pmi.stat.WSAverageStatistic;
+import com.ibm.websphere.pmi.stat.WSBoundedRangeStatistic;
+import com.ibm.websphere.pmi.stat.WSCountStatistic;
+import com.ibm.websphere.pmi.stat.WSRangeStatistic;
+import com.ibm.websphere.pmi.stat.WSStatistic;
+import com.ibm.websphere.pmi.stat.WSStats;
+
+/**
+ * A compact, read-only copy of a PMI stats tree.
+ *
+ * The WSStats trees returned by the Perf MBean are deep
+ * object graphs (a node object, a statistics array and a
+ * statistic object per value). Here, nodes are numbered
+ * in breadth first order, so that the children of a node
+ * are contiguous, and the tree lives in a few primitive
+ * arrays. The statistics of a node are contiguous too,
+ * sorted by identifier, with their values in parallel
+ * arrays:
+ *
+ *   current     range statistics
+ *   upper bound bounded range statistics
+ *   count       count, average and time statistics
+ *   total, mean average and time statistics
+ *
+ * Children are indexed by parent and name in an open
+ * addressing table, so a path is resolved in constant
+ * time per level. Node names are interned, so that the
+ * snapshots of a target share them.
+ *
+ * A test may also attach values which do not come from
+ * PMI to the nodes (e.g. MBean attributes of the instance
+ * a node stands for), so that they are evaluated like
+ * statistics.
+ */
+public final class FlatStats {
+
+    /** The root node */
+    public static final int ROOT = 0;
+
+    private static final WSStatistic[] NONE = new WSStatistic[0];
+
+    private static final long NO_VALUE = Long.MIN_VALUE;
+
+    private static final Comparator<WSStatistic> BY_ID = new Comparator<WSStatistic>() {
+        public int compare(WSStatistic a, WSStatistic b) {
+            return a.getId() < b.getId() ? -1 : (a.getId() == b.getId() ? 0 : 1);
+        }
+    };
+
+    // Nodes, in breadth first order
+    private final String[] names;
+    private final int[] parents;
+    private final int[] children;
+    private final int[] childCounts;
+    private final int[] statistics;
+
+    // Statistics, by node and identifier
+    private final int[] ids;
+    private final long[] current;
+    private final long[] upperBounds;
+    private final long[] counts;
+    private final long[] totals;
+    private final double[] means;
+
+    // Open addressing index of the children: node + 1, 0 for an empty slot
+    private final int[] index;
+
+    // Attached values, by node and key, NO_VALUE if not set
+    private long[][] values;
+
+    /**
+     * Copies a whole stats tree.
+     *
+     * @param  root the tree root, may be null
+     * @return the tree copy, whose {@link #ROOT} is the given
+     *         root (an unnamed node without children or
+     *         statistics if the root is null)
+     */
+    public static FlatStats of(WSStats root) {
+        return new FlatStats(new Path(root == null ? null : root.getName(), root));
+    }
+
+    /**
+     * Copies several stats trees, e.g. the result of
+     * a stats array query.
+     *
+     * @param  roots the tree roots (null roots are skipped)
+     * @return the trees copy, whose {@link #ROOT} is an unnamed
+     *         node above the given roots, without statistics
+     */
+    public static FlatStats of(WSStats[] roots) {
+        Path root = new Path(null, null);
+        for (int i = 0; roots != null && i < roots.length; i++) {
+            if (roots[i] != null) {
+                root.children.add(new Path(roots[i].getName(), roots[i]));
+            }
+        }
+        return new FlatStats(root);
+    }
+
+    /**
+     * Copies the result of a stats array query, in the
+     * shape of the PMI tree: each tree is copied below
+     * the nodes named after its path. For instance, the
+     * bean paths 'beanModule > app#ejbs.jar > Bean' give
+     * the 'app#ejbs.jar' nodes, whose children are the
+     * beans. A path without stats still gets its (empty)
+     * node.
+     *
+     * @param  paths the stats paths, each one starting with
+     *               the NAME field of a PMI interface
+     * @param  roots the stats of each path, may be null
+     * @return the trees copy, whose {@link #ROOT} is an unnamed
+     *         node standing for the PMI interface
+     */
+    public static FlatStats of(List<String[]> paths, WSStats[] roots) {
+        Path root = new Path(null, null);
+        Map<List<String>,Path> parents = new HashMap<List<String>,Path>();
+        for (int i = 0; i < paths.size(); i++) {
+            String[] path = paths.get(i);
+            Path parent = root;
+            for (int level = 1; level < path.length - 1; level++) {
+                List<String> key = Arrays.asList(path).subList(1, level + 1);
+                Path node = parents.get(key);
+                if (node == null) {
+                    node = new Path(path[level], null);
+                    parent.children.add(node);
+                    parents.put(key, node);
+                }
+                parent = node;
+            }
+            parent.children.add(new Path(path[path.length - 1], roots == null ? null : roots[i]));
+        }
+        return new FlatStats(root);
+    }
+
+    private FlatStats(Path root) {
+        // Breadth first numbering, the queue is the node list itself
+        // Nodes which stand for a path have their own children first
+        List<WSStats> nodes = new ArrayList<WSStats>();
+        List<Path> paths = new ArrayList<Path>();
+        List<Integer> parents = new ArrayList<Integer>();
+        List<WSStatistic[]> stats = new ArrayList<WSStatistic[]>();
+        List<Integer> firsts = new ArrayList<Integer>();
+        List<Integer> sizes = new ArrayList<Integer>();
+        int statCount = 0;
+        nodes.add(root.stats);
+        paths.add(root);
+        parents.add(Integer.valueOf(-1));
+        for (int n = 0; n < nodes.size(); n++) {
+            WSStats node = nodes.get(n);
+            Path path = paths.get(n);
+            firsts.add(Integer.valueOf(nodes.size()));
+            int size = 0;
+            if (path != null) {
+                for (Path child : path.children) {
+                    nodes.add(child.stats);
+                    paths.add(child);
+                    parents.add(Integer.valueOf(n));
+                    size++;
+                }
+            }
+            WSStats[] subs = node == null ? null : node.getSubStats();
+            for (int i = 0; subs != null && i < subs.length; i++) {
+                if (subs[i] != null) {
+                    nodes.add(subs[i]);
+                    paths.add(null);
+                    parents.add(Integer.valueOf(n));
+                    size++;
+                }
+            }
+            sizes.add(Integer.valueOf(size));
+
+            WSStatistic[] s = node == null ? null : node.getStatistics();
+            s = s == null ? NONE : s.clone();
+            Arrays.sort(s, BY_ID);
+            stats.add(s);
+            statCount += s.length;
+        }
+
+        int size = nodes.size();
+        this.names = new String[size];
+        this.parents = new int[size];
+        this.children = new int[size];
+        this.childCounts = new int[size];
+        this.statistics = new int[size + 1];
+        this.ids = new int[statCount];
+        this.current = new long[statCount];
+        this.upperBounds = new long[statCount];
+        this.counts = new long[statCount];
+        this.totals = new long[statCount];
+        this.means = new double[statCount];
+        this.index = new int[Math.max(Integer.highestOneBit(Math.max(size, 1)) * 4, 16)];
+
+        int s = 0;
+        for (int n = 0; n < size; n++) {
+            WSStats node = nodes.get(n);
+            String name = paths.get(n) != null ? paths.get(n).name : node.getName();
+            this.names[n] = name == null ? "" : name.intern();
+            this.parents[n] = parents.get(n).intValue();
+            this.children[n] = firsts.get(n).intValue();
+            this.childCounts[n] = sizes.get(n).intValue();
+            this.statistics[n] = s;
+            for (WSStatistic statistic : stats.get(n)) {
+                copy(statistic, s++);
+            }
+            if (this.parents[n] >= 0) {
+                index[slot(this.parents[n], this.names[n])] = n + 1;
+            }
+        }
+        this.statistics[size] = s;
+    }
+
+    /**
+     * @return the number of nodes
+     */
+    public int size() {
+        return names.length;
+    }
+
+    public String getName(int node) {
+        return names[node];
+    }
+
+    /**
+     * @return the parent node, or -1 for the root
+     */
+    public int getParent(int node) {
+        return parents[node];
+    }
+
+    public int getChildCount(int node) {
+        return childCounts[node];
+    }
+
+    /**
+     * @param  node a node
+     * @param  i    the child position, from 0 to the child count
+     * @return the child node
+     */
+    public int getChild(int node, int i) {
+        return children[node] + i;
+    }
+
+    /**
+     * @param  node a node
+     * @param  name a child name
+     * @return the child node, or -1 if there is none
+     */
+    public int find(int node, String name) {
+        return index[slot(node, name)] - 1;
+    }
+
+    /**
+     * @param  path node names, from a child of the root
+     * @return the node, or -1 if there is none
+     */
+    public int find(String... path) {
+        int node = ROOT;
+        for (int i = 0; i < path.length && node >= 0 && node < size(); i++) {
+            node = find(node, path[i]);
+        }
+        return node < size() ? node : -1;
+    }
+
+    /**
+     * @param  node a node (or -1)
+     * @param  id   a statistic identifier
+     * @return the statistic, or -1 if the node
+     *         does not have this statistic
+     */
+    public int statistic(int node, int id) {
+        if (node < 0 || node >= size()) {
+            return -1;
+        }
+        int low = statistics[node];
+        int high = statistics[node + 1] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (ids[mid] < id) {
+                low = mid + 1;
+            } else if (ids[mid] > id) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    public long getCurrent(int statistic) {
+        return current[statistic];
+    }
+
+    public long getUpperBound(int statistic) {
+        return upperBounds[statistic];
+    }
+
+    public long getCount(int statistic) {
+        return counts[statistic];
+    }
+
+    public long getTotal(int statistic) {
+        return totals[statistic];
+    }
+
+    public double getMean(int statistic) {
+        return means[statistic];
+    }
+
+    /**
+     * Attaches a value to a node.
+     *
+     * @param node  a node
+     * @param key   a small value identifier, chosen by the test
+     * @param value the value
+     */
+    public void setValue(int node, int key, long value) {
+        if (values == null) {
+            values = new long[size()][];
+        }
+        long[] v = values[node];
+        if (v == null || v.length <= key) {
+            long[] grown = new long[key + 1];
+            Arrays.fill(grown, NO_VALUE);
+            if (v != null) {
+                System.arraycopy(v, 0, grown, 0, v.length);
+            }
+            values[node] = v = grown;
+        }
+        v[key] = value;
+    }
+
+    /**
+     * @param  node a node (or -1)
+     * @param  key  a value identifier
+     * @return true if the value is attached to the node
+     */
+    public boolean hasValue(int node, int key) {
+        return node >= 0 && values != null && values[node] != null
+                && key < values[node].length && values[node][key] != NO_VALUE;
+    }
+
+    /**
+     * @param  node a node
+     * @param  key  a value identifier
+     * @return the attached value (see {@link #hasValue(int, int)})
+     */
+    public long getValue(int node, int key) {
+        return values[node][key];
+    }
+
+    private void copy(WSStatistic statistic, int s) {
+        ids[s] = statistic.getId();
+        if (statistic instanceof WSRangeStatistic) {
+            current[s] = ((WSRangeStatistic)statistic).getCurrent();
+        }
+        if (statistic instanceof WSBoundedRangeStatistic) {
+            upperBounds[s] = ((WSBoundedRangeStatistic)statistic).getUpperBound();
+        }
+        if (statistic instanceof WSCountStatistic) {
+            counts[s] = ((WSCountStatistic)statistic).getCount();
+        }
+        if (statistic instanceof WSAverageStatistic) {
+            WSAverageStatistic average = (WSAverageStatistic)statistic;
+            counts[s] = average.getCount();
+            totals[s] = average.getTotal();
+            means[s] = average.getMean();
+        }
+    }
+
+    /*
+     * Finds the index slot of a child, or the empty
+     * slot where it should be inserted.
+     */
+    private int slot(int parent, String name) {
+        int mask = index.length - 1;
+        int h = name.hashCode() * 31 + parent;
+        int slot = (h ^ (h >>> 16)) & mask;
+        while (index[slot] != 0) {
+            int node = index[slot] - 1;
+            if (parents[node] == parent && names[node].equals(name)) {
+                break;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /*
+     * A node of a copy, standing for a stats path or a
+     * tree root, before the breadth first numbering.
+     */
+    private static final class Path {
+
+        final String name;
+        final WSStats stats;
+        final List<Path> children = new ArrayList<Path>();
+
+        Path(String name, WSStats stats) {
+            this.name = name;
+            this.stats = stats;
+        }
+
+    }
+
+}
@@ -0,0 +1,531 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.wait4it.nagios.wasagent.core;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Keeps the recent history of the metrics collected for
+ * a target WAS instance, so that one can see what a
+ * component was doing before an alert.
+ *
+ * Samples are stored in a fixed size ring buffer file,
+ * mapped in memory (outside the Java heap). Each sample
+ * is a 24 bytes record:
+ *
+ *   stamp (long) time (int, s) label id (int) value (double)
+ *
+ * The stamp is the sample sequence number plus one, so
+ * that samples are given back in order. Appends do not
+ * lock: a writer takes the next sequence number from an
+ * atomic counter, claims the slot with a compare-and-set
+ * on the stamp of the slot (kept in an atomic array next
+ * to the mapping), writes the record, and then publishes
+ * the stamp. A reader reads the stamp before and after the
+ * record, as with a sequence lock, and skips a record
+ * which changed meanwhile.
+ *
+ * Metrics are identified by their dictionary label (see
+ * {@link Labels}). Since label identifiers do not outlive
+ * the agent, the labels of the stored samples are written
+ * to a text file next to the ring buffer (one label per
+ * line, with its parts), and the samples are given the
+ * current identifiers of their labels when the history is
+ * opened again.
+ *
+ * The history is enabled by the 'wasagent.history' system
+ * property (the files directory). 'wasagent.history.size'
+ * sets the number of samples kept per target (default
+ * 100000, about 2.4 MB), and 'wasagent.history.metrics' the
+ * number of distinct labels (default 65536). When the labels
+ * table is full, the labels which no stored sample uses any
+ * more (e.g. instances which were redeployed under another
+ * name) are dropped. If this does not free a quarter of the
+ * table, the labels recorded the longest time ago are dropped
+ * too, with their samples, so that new metrics are always
+ * recorded. The sample which found the table full is lost,
+ * and counted (see {@link #report(Perfdata)}). Both files are
+ * reopened when the agent restarts. At most
+ * 'wasagent.history.open' histories (default 256) are kept
+ * open: the least recently used one is closed when another
+ * one is opened, and reopened from its files when needed.
+ */
+public final class History {
+
+    // Open histories, by target WAS instance, the least recently used first
+    private static final int OPEN = Math.max(Integer.getInteger("wasagent.history.open", 256).intValue(), 1);
+    private static final Map<String,History> TARGETS = new LinkedHashMap<String,History>(16, 0.75f, true);
+
+    // Files directory, null if the history is disabled
+    private static final String DIRECTORY = System.getProperty("wasagent.history");
+
+    private static final int SIZE = Integer.getInteger("wasagent.history.size", 100000).intValue();
+    private static final int METRICS = Integer.getInteger("wasagent.history.metrics", 65536).intValue();
+
+    // File layout
+    private static final int MAGIC = 0x57415348; // 'WASH'
+    private static final int VERSION = 2;
+    private static final int HEADER = 16;
+    private static final int RECORD = 24;
+
+    // Samples dropped since the start, their label did not fit in
+    private static final AtomicLong DROPPED = new AtomicLong();
+
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+    private final AtomicLong sequence;
+
+    // Stamp of each slot, negative while the slot is written
+    private final AtomicLongArray stamps;
+
+    // Recording stops once the history is closed
+    private final ReadWriteLock state = new ReentrantReadWriteLock();
+    private boolean closed = false;
+
+    // Labels of the stored samples, by identifier
+    private final ConcurrentMap<Integer,Labels.Label> labels = new ConcurrentHashMap<Integer,Labels.Label>();
+    private final File metrics;
+    private final Object lock = new Object();
+    private Writer names;
+
+    // Set when a label did not fit in, until labels are dropped
+    private volatile boolean full = false;
+
+    /**
+     * @return true if the history is enabled
+     */
+    public static boolean isEnabled() {
+        return DIRECTORY != null;
+    }
+
+    /**
+     * Gets the history for a target WAS instance,
+     * opening (or creating) its files if needed.
+     *
+     * @param  target the target identifier (host:port)
+     * @return the target history
+     * @throws IOException
+     */
+    public static History forTarget(String target) throws IOException {
+        return get(target, true);
+    }
+
+    /**
+     * Gets the history for a target WAS instance, only
+     * if samples were already recorded for it. No file
+     * is created for an unknown target.
+     *
+     * @param  target the target identifier (host:port)
+     * @return the target history, or null if there is none
+     * @throws IOException
+     */
+    public static History find(String target) throws IOException {
+        return get(target, false);
+    }
+
+    private static History get(String target, boolean create) throws IOException {
+        synchronized (TARGETS) {
+            History history = TARGETS.get(target);
+            if (history == null) {
+                String name = target.replaceAll("[^A-Za-z0-9.-]", "_");
+                File data = new File(DIRECTORY, name + ".dat");
+                if (! create && ! data.exists()) {
+                    return null;
+                }
+                history = new History(data, new File(DIRECTORY, name + ".metrics"), SIZE);
+                TARGETS.put(target, history);
+                if (TARGETS.size() > OPEN) {
+                    Iterator<History> eldest = TARGETS.values().iterator();
+                    History evicted = eldest.next();
+                    eldest.remove();
+                    // Closed before its files can be opened again
+                    evicted.close();
+                }
+            }
+            return history;
+        }
+    }
+
+    /**
+     * Opens (or creates) a history. A ring buffer file
+     * with another layout or size is started afresh.
+     *
+     * @param  data     the ring buffer file
+     * @param  metrics  the labels file
+     * @param  capacity the number of samples
+     * @throws IOException
+     */
+    History(File data, File metrics, int capacity) throws IOException {
+        this.capacity = capacity;
+        this.metrics = metrics;
+
+        data.getParentFile().mkdirs();
+        RandomAccessFile file = new RandomAccessFile(data, "rw");
+        try {
+            long length = HEADER + (long) capacity * RECORD;
+            boolean fresh = file.length() != length;
+            file.setLength(length);
+            buffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            if (fresh || buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || buffer.getInt(8) != capacity) {
+                for (int i = 0; i < capacity; i++) {
+                    buffer.putLong(HEADER + i * RECORD, 0);
+                }
+                buffer.putInt(0, MAGIC);
+                buffer.putInt(4, VERSION);
+                buffer.putInt(8, capacity);
+                if (metrics.exists()) {
+                    metrics.delete();
+                }
+            }
+        } finally {
+            // The mapping stays valid once the file is closed
+            file.close();
+        }
+
+        // Labels of the stored samples, by their former identifier
+        Map<Integer,Labels.Label> former = new HashMap<Integer,Labels.Label>();
+        if (metrics.exists()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(metrics), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] fields = line.split("\t", -1);
+                    if (fields.length == 4) {
+                        try {
+                            former.put(Integer.valueOf(fields[0]), Labels.get(fields[1], fields[2], fields[3]));
+                        } catch (NumberFormatException ignored) {
+                        }
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        }
+
+        // Samples get the current identifiers of their labels, and
+        // sequence numbers go on from the last stored sample
+        long last = 0;
+        stamps = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            int offset = HEADER + i * RECORD;
+            long stamp = buffer.getLong(offset);
+            if (stamp == 0) {
+                continue;
+            }
+            Labels.Label label = former.get(Integer.valueOf(buffer.getInt(offset + 12)));
+            if (label == null) {
+                buffer.putLong(offset, 0);
+                continue;
+            }
+            buffer.putInt(offset + 12, label.getId());
+            labels.put(Integer.valueOf(label.getId()), label);
+            stamps.set(i, stamp);
+            last = Math.max(last, stamp);
+        }
+        sequence = new AtomicLong(last);
+
+        // The labels file is written again, without the labels no sample uses
+        names = rewrite();
+    }
+
+    /**
+     * Writes the number of samples dropped since the
+     * start, because their label did not fit in the
+     * labels table, as Nagios performance data.
+     *
+     * @param out the destination buffer
+     */
+    public static void report(Perfdata out) {
+        out.begin();
+        out.append("history-dropped=").append(DROPPED.get()).append('c');
+        out.end();
+    }
+
+    /**
+     * Stores the metrics of a performance data buffer
+     * which were written with their label (see
+     * {@link Perfdata#metric(Labels.Label, double, boolean)}).
+     * Nothing is stored if the history was closed meanwhile.
+     *
+     * @param  perfdata the performance data
+     * @param  now      the sample time (ms)
+     * @throws IOException
+     */
+    public void record(Perfdata perfdata, long now) throws IOException {
+        int time = (int) (now / 1000);
+        state.readLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            for (int i = 0; i < perfdata.valueCount(); i++) {
+                if (perfdata.isLive(i) && known(perfdata.getLabel(i))) {
+                    append(time, perfdata.getLabel(i).getId(), perfdata.getValue(i));
+                }
+            }
+        } finally {
+            state.readLock().unlock();
+        }
+
+        if (full) {
+            prune();
+        }
+    }
+
+    /**
+     * Writes the stored samples of a metric, one
+     * 'time value' line per sample (time in seconds).
+     *
+     * @param  metric the metric label
+     * @param  from   the range start (s)
+     * @param  to     the range end (s)
+     * @param  out    the destination writer
+     * @throws IOException
+     */
+    public void query(String metric, long from, long to, Writer out) throws IOException {
+        // A label dropped from the dictionary and used again has a new identifier
+        Set<Integer> ids = new HashSet<Integer>();
+        for (Labels.Label label : labels.values()) {
+            if (label.toString().equals(metric)) {
+                ids.add(Integer.valueOf(label.getId()));
+            }
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        List<long[]> samples = new ArrayList<long[]>();
+        for (int i = 0; i < capacity; i++) {
+            int offset = HEADER + i * RECORD;
+            long stamp = stamps.get(i);
+            if (stamp <= 0) {
+                continue;
+            }
+            int id = buffer.getInt(offset + 12);
+            long time = buffer.getInt(offset + 8) & 0xFFFFFFFFL;
+            long bits = buffer.getLong(offset + 16);
+            // Overwritten while it was read
+            if (stamps.get(i) != stamp) {
+                continue;
+            }
+            if (ids.contains(Integer.valueOf(id)) && time >= from && time <= to) {
+                samples.add(new long[] {stamp, time, bits});
+            }
+        }
+
+        long[][] sorted = samples.toArray(new long[samples.size()][]);
+        Arrays.sort(sorted, new Comparator<long[]>() {
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+            }
+        });
+        for (long[] sample : sorted) {
+            out.write(sample[1] + " " + Double.longBitsToDouble(sample[2]) + "\n");
+        }
+    }
+
+    /*
+     * Closes the labels file, once the samples being
+     * recorded are stored. The mapping is released by
+     * the garbage collector.
+     */
+    private void close() {
+        state.writeLock().lock();
+        try {
+            closed = true;
+            synchronized (lock) {
+                names.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            state.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Drops the labels which no stored sample uses, then
+     * the least recently recorded ones (and their samples)
+     * until a quarter of the table is free, and writes the
+     * labels file again. No sample is being appended
+     * meanwhile, so a label cannot be dropped while a
+     * sample of it is written.
+     */
+    private void prune() throws IOException {
+        state.writeLock().lock();
+        try {
+            if (closed || ! full) {
+                return;
+            }
+
+            // Stamp of the last stored sample of each label
+            Map<Integer,Long> latest = new HashMap<Integer,Long>();
+            for (int i = 0; i < capacity; i++) {
+                long stamp = stamps.get(i);
+                if (stamp > 0) {
+                    Integer id = Integer.valueOf(buffer.getInt(HEADER + i * RECORD + 12));
+                    Long last = latest.get(id);
+                    if (last == null || last.longValue() < stamp) {
+                        latest.put(id, Long.valueOf(stamp));
+                    }
+                }
+            }
+            labels.keySet().retainAll(latest.keySet());
+
+            int excess = labels.size() - (METRICS - METRICS / 4);
+            if (excess > 0) {
+                List<Map.Entry<Integer,Long>> oldest = new ArrayList<Map.Entry<Integer,Long>>(latest.entrySet());
+                Collections.sort(oldest, new Comparator<Map.Entry<Integer,Long>>() {
+                    public int compare(Map.Entry<Integer,Long> a, Map.Entry<Integer,Long> b) {
+                        return a.getValue().compareTo(b.getValue());
+                    }
+                });
+                Set<Integer> dropped = new HashSet<Integer>();
+                for (int i = 0; i < excess; i++) {
+                    dropped.add(oldest.get(i).getKey());
+                }
+                for (int i = 0; i < capacity; i++) {
+                    int offset = HEADER + i * RECORD;
+                    if (stamps.get(i) > 0 && dropped.contains(Integer.valueOf(buffer.getInt(offset + 12)))) {
+                        buffer.putLong(offset, 0);
+                        stamps.set(i, 0);
+                    }
+                }
+                labels.keySet().removeAll(dropped);
+            }
+
+            synchronized (lock) {
+                names.close();
+                names = rewrite();
+            }
+            full = false;
+        } finally {
+            state.writeLock().unlock();
+        }
+    }
+
+    /*
+     * Writes the labels file from the labels table.
+     */
+    private Writer rewrite() throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(metrics), "UTF-8");
+        for (Labels.Label label : labels.values()) {
+            writer.write(line(label));
+        }
+        writer.flush();
+        return writer;
+    }
+
+    /*
+     * Appends a sample without locking. The slot is
+     * claimed by negating its stamp, and the stamp is
+     * published once the record is written.
+     */
+    private void append(int time, int id, double value) {
+        long seq = sequence.getAndIncrement();
+        int slot = (int) (seq % capacity);
+        int offset = HEADER + slot * RECORD;
+        for (;;) {
+            long stamp = stamps.get(slot);
+            // A later sample may have taken the slot already
+            if (Math.abs(stamp) > seq) {
+                return;
+            }
+            // An earlier sample is being written, a ring ago
+            if (stamp < 0) {
+                Thread.yield();
+                continue;
+            }
+            if (stamps.compareAndSet(slot, stamp, -(seq + 1))) {
+                break;
+            }
+        }
+        buffer.putInt(offset + 8, time);
+        buffer.putInt(offset + 12, id);
+        buffer.putDouble(offset + 16, value);
+        buffer.putLong(offset, seq + 1);
+        stamps.set(slot, seq + 1);
+    }
+
+    /*
+     * Checks that the label of a sample is in the labels
+     * file, adding it if needed. Returns false, and counts
+     * the dropped sample, if there are too many labels
+     * already, or if the label cannot be written on one line.
+     */
+    private boolean known(Labels.Label label) throws IOException {
+        Integer id = Integer.valueOf(label.getId());
+        if (labels.containsKey(id)) {
+            return true;
+        }
+        synchronized (lock) {
+            if (! labels.containsKey(id)) {
+                if (! isPlain(label.getPrefix()) || ! isPlain(label.getInstance()) || ! isPlain(label.getMetric())) {
+                    DROPPED.incrementAndGet();
+                    return false;
+                }
+                if (labels.size() >= METRICS) {
+                    full = true;
+                    DROPPED.incrementAndGet();
+                    return false;
+                }
+                names.write(line(label));
+                names.flush();
+                labels.put(id, label);
+            }
+        }
+        return true;
+    }
+
+    private static boolean isPlain(String s) {
+        return s.indexOf('\t') < 0 && s.indexOf('\n') < 0 && s.indexOf('\r') < 0;
+    }
+
+    private static String line(Labels.Label label) {
+        return label.getId() + "\t" + label.getPrefix() + "\t" + label.getInstance() + "\t" + label.getMetric() + "\n";
+    }
+
+}
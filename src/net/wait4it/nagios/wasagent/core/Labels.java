@@ -0,0 +1,239 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.wait4it.nagios.wasagent.core;
+
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A global dictionary of metric labels, such as
+ * 'jdbc-jdbc/app-waitTime'.
+ *
+ * The same labels are built for every instance on
+ * every check. The dictionary keeps each label once,
+ * with a stable identifier, its characters and its
+ * UTF-8 encoding, so that writers (performance data,
+ * samples and baselines) use it without building the
+ * label again.
+ *
+ * Labels are looked up by module prefix, instance name
+ * and metric name, without allocating when the label is
+ * known. The dictionary is split in 16 segments, each
+ * with its own lock, and the least recently used labels
+ * are dropped when a segment is full, so that instances
+ * coming and going do not make it grow forever. The
+ * 'wasagent.labels' system property sets the number of
+ * labels kept (default 65536). A dropped label gets a
+ * new identifier when it is used again: identifiers are
+ * never reused for another label.
+ */
+public final class Labels {
+
+    private static final int SEGMENTS = 16;
+    private static final int SIZE = Integer.getInteger("wasagent.labels", 65536).intValue();
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final Segment[] TABLE = new Segment[SEGMENTS];
+    private static final AtomicInteger IDS = new AtomicInteger();
+
+    static {
+        for (int i = 0; i < SEGMENTS; i++) {
+            TABLE[i] = new Segment(Math.max(SIZE / SEGMENTS, 1));
+        }
+    }
+
+    private Labels() {
+    }
+
+    /**
+     * Gets a metric label, e.g. 'jdbc-jdbc/app-waitTime'.
+     *
+     * @param  prefix   the module prefix, e.g. 'jdbc-'
+     * @param  instance the instance name
+     * @param  metric   the metric name, may be empty
+     * @return the label
+     */
+    public static Label get(String prefix, String instance, String metric) {
+        int hash = hash(prefix, instance, metric);
+        return TABLE[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)].get(hash, prefix, instance, metric);
+    }
+
+    /**
+     * @return the number of labels kept
+     */
+    public static int size() {
+        int size = 0;
+        for (Segment segment : TABLE) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    private static int hash(String prefix, String instance, String metric) {
+        return (prefix.hashCode() * 31 + instance.hashCode()) * 31 + metric.hashCode();
+    }
+
+    /**
+     * A metric label.
+     */
+    public static final class Label {
+
+        private final int id;
+        private final String text;
+        private final char[] chars;
+        private final byte[] bytes;
+        private final String prefix;
+        private final String instance;
+        private final String metric;
+
+        private Label(int id, String text, String prefix, String instance, String metric) {
+            this.id = id;
+            this.text = text;
+            this.chars = text.toCharArray();
+            this.bytes = text.getBytes(UTF_8);
+            this.prefix = prefix;
+            this.instance = instance;
+            this.metric = metric;
+        }
+
+        /**
+         * @return the label identifier
+         */
+        public int getId() {
+            return id;
+        }
+
+        /*
+         * The label parts, to get the label again
+         * from the dictionary (e.g. after a restart).
+         */
+        String getPrefix() {
+            return prefix;
+        }
+
+        String getInstance() {
+            return instance;
+        }
+
+        String getMetric() {
+            return metric;
+        }
+
+        /**
+         * @return the label characters (not to be modified)
+         */
+        char[] getChars() {
+            return chars;
+        }
+
+        /**
+         * @return the label encoded in UTF-8 (not to be modified)
+         */
+        public byte[] getBytes() {
+            return bytes;
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+
+    }
+
+    /*
+     * The lookup key of a label. A segment probes its map
+     * with a single mutable key, under its lock, and only
+     * stores copies of it.
+     */
+    private static final class Key {
+
+        int hash;
+        String prefix;
+        String instance;
+        String metric;
+
+        Key set(int hash, String prefix, String instance, String metric) {
+            this.hash = hash;
+            this.prefix = prefix;
+            this.instance = instance;
+            this.metric = metric;
+            return this;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (! (o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return hash == k.hash && prefix.equals(k.prefix) && instance.equals(k.instance) && metric.equals(k.metric);
+        }
+
+    }
+
+    private static final class Segment extends LinkedHashMap<Key,Label> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+        private final Key probe = new Key();
+
+        Segment(int capacity) {
+            // Access order, for the LRU eviction
+            super(16, 0.75F, true);
+            this.capacity = capacity;
+        }
+
+        synchronized Label get(int hash, String prefix, String instance, String metric) {
+            Label label = get(probe.set(hash, prefix, instance, metric));
+            if (label == null) {
+                StringBuilder text = new StringBuilder(prefix.length() + instance.length() + metric.length() + 1);
+                text.append(prefix).append(instance);
+                if (metric.length() > 0) {
+                    text.append('-').append(metric);
+                }
+                label = new Label(IDS.getAndIncrement(), text.toString(), prefix, instance, metric);
+                put(new Key().set(hash, prefix, instance, metric), label);
+            }
+            probe.set(0, null, null, null);
+            return label;
+        }
+
+        @Override
+        public synchronized int size() {
+            return super.size();
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key,Label> eldest) {
+            return size() > capacity;
+        }
+
+    }
+
+}
@@ -31,13 +31,19 @@ import net.wait4it.nagios.wasagent.tests.*;
 public enum Option {
 
     JVM         ( "jvm", new JVMTest() ),
+    GC          ( "gc", new GCTest() ),
     THREADPOOL  ( "thread-pool", new ThreadPoolTest() ),
     JTA         ( "jta", new JTATest() ),
     JDBC        ( "jdbc", new JDBCTest() ),
     JMS         ( "jms", new JMSTest() ),
     SIBQUEUE    ( "sib-queue", new SIBQueueTest() ),    
     APPLICATION ( "application", new ApplicationTest() ),
-    SERVLET     ( "servlet", new ServletTest() );
+    SERVLET     ( "servlet", new ServletTest() ),
+    WEBRATE     ( "web-rate", new WebRateTest() ),
+    EJB         ( "ejb", new EJBTest(false) ),
+    EJBMETHOD   ( "ejb-method", new EJBTest(true) ),
+    MDB         ( "mdb", new MDBTest() ),
+    DYNACACHE   ( "dynacache", new DynaCacheTest() );
 
     private final String name;
     private final Test test;
@@ -0,0 +1,494 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.wait4it.nagios.wasagent.core;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * A Nagios performance data buffer.
+ *
+ * Items (usually all the metrics of one instance) are
+ * appended field by field to a single character buffer,
+ * without building intermediate strings. Items are then
+ * sorted through an index array and written to the HTTP
+ * response, separated by a space.
+ *
+ * Items may also be removed, e.g. when only the worst
+ * instances are reported. The space they use is reclaimed
+ * before the buffer grows, so that the buffer size stays
+ * proportional to the reported items.
+ *
+ * Metrics written with a dictionary label also keep their
+ * label and value, so that they can be stored (see
+ * {@link History}) or compared (see {@link Scheduler})
+ * without parsing the text again.
+ */
+public final class Perfdata {
+
+    private char[] buffer;
+    private int length = 0;
+
+    // Item boundaries in the buffer
+    private int[] starts = new int[16];
+    private int[] ends = new int[16];
+    private int count = 0;
+    private int live = 0;
+    private int start = -1;
+
+    // Characters used by removed items
+    private int dead = 0;
+
+    // Item order, once sorted
+    private int[] order = null;
+
+    // Metric labels and values, with their item
+    private Labels.Label[] labels = new Labels.Label[16];
+    private double[] values = new double[16];
+    private int[] valueItems = new int[16];
+    private int valueCount = 0;
+
+    public Perfdata() {
+        this(256);
+    }
+
+    /**
+     * @param capacity the initial buffer size (characters)
+     */
+    public Perfdata(int capacity) {
+        buffer = new char[capacity];
+    }
+
+    /**
+     * Starts a new item.
+     */
+    public void begin() {
+        start = length;
+    }
+
+    /**
+     * Ends the current item. Empty items are discarded.
+     *
+     * @return the item identifier, or -1 if the item is empty
+     */
+    public int end() {
+        int item = -1;
+        if (start >= 0 && length > start) {
+            if (count == starts.length) {
+                starts = grow(starts);
+                ends = grow(ends);
+            }
+            starts[count] = start;
+            ends[count] = length;
+            item = count++;
+            live++;
+            order = null;
+        }
+        start = -1;
+        return item;
+    }
+
+    /**
+     * Removes an item.
+     *
+     * @param item an item identifier, as returned by {@link #end()}
+     */
+    public void remove(int item) {
+        if (item < 0 || item >= count || starts[item] < 0) {
+            return;
+        }
+        if (item == count - 1 && ends[item] == length && start < 0) {
+            // Last item, simply drop the buffer tail
+            length = starts[item];
+            count--;
+            // and its values, since the next item takes its identifier
+            while (valueCount > 0 && valueItems[valueCount - 1] == item) {
+                labels[--valueCount] = null;
+            }
+        } else {
+            dead += ends[item] - starts[item];
+            starts[item] = -1;
+        }
+        live--;
+        order = null;
+    }
+
+    /**
+     * Adds a whole item.
+     *
+     * @param item a preformatted item
+     */
+    public void add(String item) {
+        begin();
+        append(item);
+        end();
+    }
+
+    public Perfdata append(String s) {
+        int n = s.length();
+        ensure(n);
+        s.getChars(0, n, buffer, length);
+        length += n;
+        return this;
+    }
+
+    /**
+     * Appends a metric label, without building it again.
+     *
+     * @param  label a label from the dictionary
+     * @return       this buffer
+     */
+    public Perfdata append(Labels.Label label) {
+        char[] chars = label.getChars();
+        ensure(chars.length);
+        System.arraycopy(chars, 0, buffer, length, chars.length);
+        length += chars.length;
+        return this;
+    }
+
+    public Perfdata append(char c) {
+        ensure(1);
+        buffer[length++] = c;
+        return this;
+    }
+
+    public Perfdata append(long value) {
+        if (value == Long.MIN_VALUE) {
+            return append(String.valueOf(value));
+        }
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+        int digits = 1;
+        for (long v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        ensure(digits);
+        for (int i = length + digits - 1; i >= length; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+        return this;
+    }
+
+    /**
+     * Appends a metric ('label=value'), and keeps its
+     * label and value.
+     *
+     * @param label   a label from the dictionary
+     * @param value   the metric value
+     * @param decimal true for a decimal value, false for an integer one
+     * @return        this buffer
+     */
+    public Perfdata metric(Labels.Label label, double value, boolean decimal) {
+        if (valueCount == values.length) {
+            labels = Arrays.copyOf(labels, valueCount * 2);
+            values = Arrays.copyOf(values, valueCount * 2);
+            valueItems = grow(valueItems);
+        }
+        labels[valueCount] = label;
+        values[valueCount] = value;
+        // The item gets the next identifier when it ends
+        valueItems[valueCount++] = count;
+        return append(label).append('=').append(value, decimal);
+    }
+
+    /**
+     * Appends a metric value. Decimal values are written
+     * with two digits and a dot, whatever the default locale.
+     *
+     * @param value   the metric value
+     * @param decimal true for a decimal value, false for an integer one
+     * @return        this buffer
+     */
+    public Perfdata append(double value, boolean decimal) {
+        if (! decimal) {
+            return append(Math.round(value));
+        }
+        long hundredths = Math.round(Math.abs(value) * 100);
+        if (value < 0 && hundredths != 0) {
+            append('-');
+        }
+        append(hundredths / 100).append('.');
+        if (hundredths % 100 < 10) {
+            append('0');
+        }
+        return append(hundredths % 100);
+    }
+
+    /**
+     * Formats a metric value as {@link #append(double, boolean)}
+     * writes it, e.g. for the alert messages.
+     *
+     * @param value   the metric value
+     * @param decimal true for a decimal value, false for an integer one
+     * @return        the formatted value
+     */
+    public static String format(double value, boolean decimal) {
+        Perfdata s = new Perfdata(24);
+        s.append(value, decimal);
+        return new String(s.buffer, 0, s.length);
+    }
+
+    /**
+     * @return the number of items
+     */
+    public int size() {
+        return live;
+    }
+
+    public boolean isEmpty() {
+        return live == 0;
+    }
+
+    /**
+     * @param  n an item position, in output order
+     * @return the item size once encoded in UTF-8 (bytes)
+     */
+    public int bytes(int n) {
+        int item = order()[n];
+        return bytes(buffer, starts[item], ends[item]);
+    }
+
+    /**
+     * @param  s a string
+     * @return the string size once encoded in UTF-8 (bytes)
+     */
+    public static int bytes(String s) {
+        return bytes(s.toCharArray(), 0, s.length());
+    }
+
+    /**
+     * Removes all the items, keeping the buffers.
+     */
+    public void clear() {
+        length = 0;
+        count = 0;
+        live = 0;
+        start = -1;
+        dead = 0;
+        order = null;
+        Arrays.fill(labels, 0, valueCount, null);
+        valueCount = 0;
+    }
+
+    /*
+     * The metrics kept by metric(), in writing order. A
+     * metric is live unless its item was removed.
+     */
+    int valueCount() {
+        return valueCount;
+    }
+
+    Labels.Label getLabel(int i) {
+        return labels[i];
+    }
+
+    double getValue(int i) {
+        return values[i];
+    }
+
+    boolean isLive(int i) {
+        int item = valueItems[i];
+        return item < count && starts[item] >= 0;
+    }
+
+    /**
+     * Sorts the items in lexicographic order. Only the
+     * index array is sorted, the buffer is left untouched.
+     */
+    public void sort() {
+        int[] o = order();
+        mergeSort(o, new int[o.length], 0, o.length);
+    }
+
+    /**
+     * Writes the items, separated by a space.
+     *
+     * @param  out the destination writer
+     * @throws IOException
+     */
+    public void writeTo(Writer out) throws IOException {
+        writeTo(out, live);
+    }
+
+    /**
+     * Writes the first items, separated by a space.
+     *
+     * @param  out the destination writer
+     * @param  n   the number of items to write
+     * @throws IOException
+     */
+    public void writeTo(Writer out, int n) throws IOException {
+        int[] o = order();
+        for (int i = 0; i < n && i < o.length; i++) {
+            int item = o[i];
+            if (i > 0) {
+                out.write(' ');
+            }
+            out.write(buffer, starts[item], ends[item] - starts[item]);
+        }
+    }
+
+    /**
+     * Appends the items, separated by a space.
+     *
+     * @param out the destination builder
+     */
+    public void appendTo(StringBuilder out) {
+        int[] o = order();
+        for (int i = 0; i < o.length; i++) {
+            int item = o[i];
+            if (i > 0) {
+                out.append(' ');
+            }
+            out.append(buffer, starts[item], ends[item] - starts[item]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder(length - dead + live);
+        appendTo(s);
+        return s.toString();
+    }
+
+    /*
+     * Live items in output order, insertion order
+     * until the items are sorted.
+     */
+    private int[] order() {
+        if (order == null) {
+            int[] o = new int[live];
+            for (int i = 0, k = 0; i < count; i++) {
+                if (starts[i] >= 0) {
+                    o[k++] = i;
+                }
+            }
+            order = o;
+        }
+        return order;
+    }
+
+    private void ensure(int n) {
+        if (length + n > buffer.length && dead * 2 >= length) {
+            compact();
+        }
+        if (length + n > buffer.length) {
+            char[] b = new char[Math.max(buffer.length * 2, length + n)];
+            System.arraycopy(buffer, 0, b, 0, length);
+            buffer = b;
+        }
+    }
+
+    /*
+     * Moves the live items (and the current one) down
+     * over the space used by removed items. Items are
+     * stored in identifier order, so nothing is overwritten.
+     */
+    private void compact() {
+        int to = 0;
+        for (int i = 0; i < count; i++) {
+            if (starts[i] >= 0) {
+                int n = ends[i] - starts[i];
+                System.arraycopy(buffer, starts[i], buffer, to, n);
+                starts[i] = to;
+                ends[i] = to + n;
+                to += n;
+            }
+        }
+        if (start >= 0) {
+            System.arraycopy(buffer, start, buffer, to, length - start);
+            length = to + length - start;
+            start = to;
+        } else {
+            length = to;
+        }
+        dead = 0;
+    }
+
+    private static int bytes(char[] chars, int from, int to) {
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            char c = chars[i];
+            if (c < 0x80) {
+                n++;
+            } else if (c < 0x800) {
+                n += 2;
+            } else if (Character.isHighSurrogate(c)) {
+                n += 4;
+                i++;
+            } else {
+                n += 3;
+            }
+        }
+        return n;
+    }
+
+    private static int[] grow(int[] a) {
+        int[] b = new int[a.length * 2];
+        System.arraycopy(a, 0, b, 0, a.length);
+        return b;
+    }
+
+    /*
+     * Stable merge sort of item indexes.
+     */
+    private void mergeSort(int[] a, int[] tmp, int from, int to) {
+        if (to - from < 2) {
+            return;
+        }
+        int middle = (from + to) >>> 1;
+        mergeSort(a, tmp, from, middle);
+        mergeSort(a, tmp, middle, to);
+        if (compare(a[middle - 1], a[middle]) <= 0) {
+            return;
+        }
+        System.arraycopy(a, from, tmp, from, to - from);
+        int i = from, j = middle, k = from;
+        while (i < middle && j < to) {
+            a[k++] = compare(tmp[j], tmp[i]) < 0 ? tmp[j++] : tmp[i++];
+        }
+        while (i < middle) {
+            a[k++] = tmp[i++];
+        }
+        while (j < to) {
+            a[k++] = tmp[j++];
+        }
+    }
+
+    /*
+     * Compares two items, like String.compareTo().
+     */
+    private int compare(int i1, int i2) {
+        int p1 = starts[i1], p2 = starts[i2];
+        int n = Math.min(ends[i1] - p1, ends[i2] - p2);
+        for (int k = 0; k < n; k++) {
+            char c1 = buffer[p1 + k], c2 = buffer[p2 + k];
+            if (c1 != c2) {
+                return c1 - c2;
+            }
+        }
+        return (ends[i1] - p1) - (ends[i2] - p2);
+    }
+
+}
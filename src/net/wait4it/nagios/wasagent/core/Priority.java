@@ -0,0 +1,250 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.wait4it.nagios.wasagent.core;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.wait4it.nagios.wasagent.tests.Selector;
+
+/**
+ * Priority classes of the agent work. Each class has its
+ * own bounded thread pool and queue, so that a sweep of
+ * thousands of servlets cannot hold up a JVM check.
+ *
+ *   - interactive: the Nagios checks (default)
+ *   - scheduled: the checks with an 'interval' parameter,
+ *     whose results are mostly cached (see {@link Scheduler})
+ *   - bulk: the sweeps of all the instances of a kind
+ *     (e.g. 'servlet=*' or 'jdbc=*,80,90') and the
+ *     history exports
+ *
+ * The class of a request is given by the 'priority' query
+ * parameter, otherwise by the 'wasagent.priority.targets'
+ * system property ('host:port=class' pairs, separated by
+ * commas, invalid pairs are ignored), otherwise by the
+ * request kind. The number of
+ * threads and the queue size of a class are set by the
+ * 'wasagent.priority.<class>.threads' and
+ * 'wasagent.priority.<class>.queue' system properties.
+ * A request is rejected when the queue of its class is full.
+ * The agent has enough HTTP threads for all the running and
+ * queued requests (see {@link #capacity()}), so a burst of
+ * requests of one class is rejected before it holds all the
+ * HTTP threads.
+ *
+ * The time spent by the requests in each queue is measured,
+ * to check that interactive checks do not wait behind bulk
+ * work.
+ */
+public enum Priority {
+
+    INTERACTIVE ( "interactive", 16, 64 ),
+    SCHEDULED   ( "scheduled", 8, 256 ),
+    BULK        ( "bulk", 2, 32 );
+
+    /** Query parameter selecting the class of a request */
+    public static final String PARAM = "priority";
+
+    // Classes of the known targets
+    private static final Map<String,Priority> TARGETS = new HashMap<String,Priority>();
+
+    static {
+        String targets = System.getProperty("wasagent.priority.targets");
+        if (targets != null) {
+            for (String pair : targets.split(",")) {
+                int equal = pair.lastIndexOf('=');
+                Priority priority = equal < 0 ? null : forName(pair.substring(equal + 1).trim());
+                if (priority != null) {
+                    TARGETS.put(pair.substring(0, equal).trim(), priority);
+                }
+            }
+        }
+    }
+
+    private final String name;
+    private final int threads;
+    private final int queue;
+    private ThreadPoolExecutor executor;
+
+    // Queue wait: count and total (ns) since the start, maximum since the last report
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    private Priority(String name, int threads, int queue) {
+        this.name = name;
+        this.threads = Integer.getInteger("wasagent.priority." + name + ".threads", threads).intValue();
+        this.queue = Integer.getInteger("wasagent.priority." + name + ".queue", queue).intValue();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @param  name a class name
+     * @return the class, or null if the name is unknown
+     */
+    public static Priority forName(String name) {
+        for (Priority priority : values()) {
+            if (priority.name.equals(name)) {
+                return priority;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Classifies a check, and removes the 'priority'
+     * parameter from the request parameters.
+     *
+     * @param  params HTTP request params
+     * @return the class of the check
+     */
+    public static Priority forCheck(Map<String,String> params) {
+        String name = params.remove(PARAM);
+        if (name != null) {
+            Priority priority = forName(name.trim());
+            if (priority == null) {
+                throw new IllegalArgumentException("invalid '" + PARAM + "' parameter: " + name);
+            }
+            return priority;
+        }
+        Priority priority = TARGETS.get(params.get("hostname") + ":" + params.get("port"));
+        if (priority != null) {
+            return priority;
+        }
+        if (isSweep(params)) {
+            return BULK;
+        }
+        return params.containsKey("interval") ? SCHEDULED : INTERACTIVE;
+    }
+
+    /**
+     * @return the number of requests which may be running
+     *         or queued at the same time, in all the classes
+     */
+    public static int capacity() {
+        int capacity = 0;
+        for (Priority priority : values()) {
+            capacity += priority.threads + Math.max(priority.queue, 1);
+        }
+        return capacity;
+    }
+
+    /*
+     * A check is a sweep when one of its tests selects
+     * all the instances with the '*' wildcard. Malformed
+     * selectors are left for the test to report.
+     */
+    private static boolean isSweep(Map<String,String> params) {
+        for (Option option : Option.values()) {
+            String value = params.get(option.getName());
+            if (value != null && value.indexOf('*') >= 0) {
+                try {
+                    if (Selector.compile(value).selectsAll()) {
+                        return true;
+                    }
+                } catch (IllegalArgumentException ignored) {
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs a task in the thread pool of this class.
+     *
+     * @param  task the task
+     * @return the task result, once available
+     * @throws RejectedExecutionException if the queue is full
+     */
+    public <T> Future<T> submit(final Callable<T> task) {
+        final long queued = System.nanoTime();
+        try {
+            return executor().submit(new Callable<T>() {
+                public T call() throws Exception {
+                    waited(System.nanoTime() - queued);
+                    return task.call();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the queue statistics of each class as Nagios
+     * performance data: the current queue length, the mean
+     * queue wait since the start and the longest one since
+     * the previous report (ms), and the rejected requests.
+     *
+     * @param out the destination buffer
+     */
+    public static void report(Perfdata out) {
+        for (Priority priority : values()) {
+            long n = priority.count.get();
+            out.begin();
+            out.append(priority.name).append("-queued=").append(priority.executor().getQueue().size())
+               .append(";;;0;").append(priority.queue).append(' ');
+            out.append(priority.name).append("-waitMean=").append(n > 0 ? priority.total.get() / 1E6 / n : 0, true).append("ms ");
+            out.append(priority.name).append("-waitMax=").append(priority.max.getAndSet(0) / 1E6, true).append("ms ");
+            out.append(priority.name).append("-rejected=").append(priority.rejected.get()).append('c');
+            out.end();
+        }
+    }
+
+    private void waited(long nanos) {
+        count.incrementAndGet();
+        total.addAndGet(nanos);
+        for (long m = max.get(); nanos > m && ! max.compareAndSet(m, nanos); m = max.get()) {
+            // Retries until the maximum is updated
+        }
+    }
+
+    private synchronized ThreadPoolExecutor executor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(Math.max(queue, 1)), new ThreadFactory() {
+                        private final AtomicInteger n = new AtomicInteger();
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "wasagent-" + name + "-" + n.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+        }
+        return executor;
+    }
+
+}
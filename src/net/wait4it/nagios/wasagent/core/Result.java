@@ -26,7 +26,8 @@ public class Result {
 
     private Status status = null;
     private String message = "";
-    private String output = "";
+    private Perfdata perfdata = new Perfdata();
+    private double proximity = 0;
 
     public Status getStatus() {
         return status;
@@ -45,11 +46,31 @@ public class Result {
     }
 
     public String getOutput() {
-        return output;
+        return perfdata.toString();
     }
 
     public void setOutput(String output) {
-        this.output = output;
+        perfdata.clear();
+        perfdata.add(output);
+    }
+
+    /**
+     * @return the test performance data buffer
+     */
+    public Perfdata getPerfdata() {
+        return perfdata;
+    }
+
+    /**
+     * @return how close the test values are to their warning
+     *         thresholds (1 at the threshold), 0 if unknown
+     */
+    public double getProximity() {
+        return proximity;
+    }
+
+    public void setProximity(double proximity) {
+        this.proximity = proximity;
     }
 
 }
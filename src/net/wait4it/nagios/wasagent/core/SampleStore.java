@@ -0,0 +1,385 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.wait4it.nagios.wasagent.core;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the previous sample of PMI counters for a
+ * check of a target WAS instance, so that tests can
+ * report values over the last polling interval instead
+ * of values since the server startup.
+ *
+ * Stores are keyed on the whole check query, not only
+ * on the target: two Nagios services which poll the same
+ * target with other parameters would otherwise consume
+ * each other's samples. Services sending the very same
+ * query still share one store: give them distinct
+ * 'interval' values if they poll at other rates.
+ *
+ * Samples are stored in an open addressing hash table
+ * backed by a key array and a single long array (three
+ * longs per sample), to keep the footprint small for
+ * targets with thousands of servlets. Samples which have
+ * not been updated for an hour are dropped when the table
+ * grows, and stores which have not been used for an hour
+ * (e.g. a query which is no longer sent) are dropped too.
+ */
+public final class SampleStore {
+
+    // One store per check (target and test parameters)
+    private static final ConcurrentMap<String,SampleStore> STORES = new ConcurrentHashMap<String,SampleStore>();
+
+    // Samples and stores older than this are dropped (ms)
+    private static final long EXPIRY = 3600000L;
+
+    // Delay between two sweeps of the idle stores (ms)
+    private static final long SWEEP = 60000L;
+    private static final AtomicLong swept = new AtomicLong();
+
+    // Sample layout: two counter values and a timestamp
+    private static final int STRIDE = 3;
+
+    // Smoothing time of the gauge trends (ms)
+    private static final double TREND = 60000D;
+
+    private String[] keys = new String[64];
+    private long[] data = new long[64 * STRIDE];
+    private int size = 0;
+    private volatile long used;
+
+    /**
+     * Gets the sample store for a check.
+     *
+     * @param  check the check identifier (sorted query)
+     * @return the check sample store
+     */
+    public static SampleStore forCheck(String check) {
+        long now = System.currentTimeMillis();
+        sweep(now);
+        SampleStore store = STORES.get(check);
+        if (store == null) {
+            SampleStore created = new SampleStore();
+            store = STORES.putIfAbsent(check, created);
+            if (store == null) {
+                store = created;
+            }
+        }
+        store.used = now;
+        return store;
+    }
+
+    /*
+     * Drops the stores which have not been used for an
+     * hour, at most once a minute. A store dropped while
+     * a check still holds it only loses the next sample.
+     */
+    private static void sweep(long now) {
+        long last = swept.get();
+        if (now - last >= SWEEP && swept.compareAndSet(last, now)) {
+            evict(now);
+        }
+    }
+
+    private static void evict(long now) {
+        for (Map.Entry<String,SampleStore> entry : STORES.entrySet()) {
+            if (now - entry.getValue().used >= EXPIRY) {
+                STORES.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Computes the mean of an average statistic over the
+     * last polling interval, and stores the new sample.
+     *
+     * When there is no previous sample, the lifetime mean
+     * is returned. When a counter went backwards (server
+     * restart or PMI reset), the whole current value is
+     * considered as the interval delta.
+     *
+     * @param  key   the sample key
+     * @param  count the statistic current count
+     * @param  total the statistic current total
+     * @param  now   the sample time (ms)
+     * @return the interval mean, 0 if there was no activity
+     */
+    public synchronized double mean(String key, long count, long total, long now) {
+        int slot = slot(key);
+        boolean found = keys[slot] != null;
+        long dc = count, dt = total;
+
+        if (found) {
+            int i = slot * STRIDE;
+            if (count >= data[i] && total >= data[i + 1]) {
+                dc = count - data[i];
+                dt = total - data[i + 1];
+            }
+        }
+
+        put(slot, key, count, total, now);
+        return dc > 0 ? (double) dt / (double) dc : 0;
+    }
+
+    /**
+     * Computes the increase of a counter over the last
+     * polling interval, and stores the new sample.
+     *
+     * @param  key   the sample key
+     * @param  count the counter current value
+     * @param  now   the sample time (ms)
+     * @return the interval increase, or NaN if there
+     *         is no previous sample
+     */
+    public synchronized double delta(String key, long count, long now) {
+        int slot = slot(key);
+        double delta = Double.NaN;
+
+        if (keys[slot] != null) {
+            int i = slot * STRIDE;
+            delta = count >= data[i] ? count - data[i] : count;
+        }
+
+        put(slot, key, count, 0, now);
+        return delta;
+    }
+
+    /**
+     * Computes the per second rate of a counter over the
+     * last polling interval, and stores the new sample.
+     *
+     * @param  key   the sample key
+     * @param  count the counter current value
+     * @param  now   the sample time (ms)
+     * @return the interval rate, or NaN if there is
+     *         no previous sample
+     */
+    public synchronized double rate(String key, long count, long now) {
+        int slot = slot(key);
+        double rate = Double.NaN;
+
+        if (keys[slot] != null) {
+            int i = slot * STRIDE;
+            long elapsed = now - data[i + 2];
+            if (elapsed > 0) {
+                rate = (count >= data[i] ? count - data[i] : count) * 1000D / elapsed;
+            }
+        }
+
+        put(slot, key, count, 0, now);
+        return rate;
+    }
+
+    /**
+     * Computes the per second change of a gauge (e.g. a
+     * queue depth), and stores the new sample with the
+     * change. The change is an exponentially weighted moving
+     * average of the interval changes, over about a minute,
+     * so that a single burst does not look like a trend.
+     *
+     * @param  key   the sample key
+     * @param  value the gauge current value
+     * @param  now   the sample time (ms)
+     * @return the smoothed change per second, or NaN if
+     *         there is no previous sample
+     */
+    public synchronized double trend(String key, long value, long now) {
+        int slot = slot(key);
+        double trend = Double.NaN;
+
+        if (keys[slot] != null) {
+            int i = slot * STRIDE;
+            long elapsed = now - data[i + 2];
+            trend = Double.longBitsToDouble(data[i + 1]);
+            if (elapsed <= 0) {
+                return trend;
+            }
+            double change = (value - data[i]) * 1000D / elapsed;
+            trend = Double.isNaN(trend) ? change : trend + (change - trend) * (1 - Math.exp(-elapsed / TREND));
+        }
+
+        put(slot, key, value, Double.doubleToLongBits(trend), now);
+        return trend;
+    }
+
+    /**
+     * Computes the share of hits among hits and misses over
+     * the last polling interval, and stores the new sample.
+     * Like the interval mean, the lifetime ratio is returned
+     * when there is no previous sample.
+     *
+     * @param  key    the sample key
+     * @param  hits   the hit counter current value
+     * @param  misses the miss counter current value
+     * @param  now    the sample time (ms)
+     * @return the interval hit ratio (%), or NaN if
+     *         there was no activity
+     */
+    public synchronized double ratio(String key, long hits, long misses, long now) {
+        int slot = slot(key);
+        long dh = hits, dm = misses;
+
+        if (keys[slot] != null) {
+            int i = slot * STRIDE;
+            if (hits >= data[i] && misses >= data[i + 1]) {
+                dh = hits - data[i];
+                dm = misses - data[i + 1];
+            }
+        }
+
+        put(slot, key, hits, misses, now);
+        return dh + dm > 0 ? dh * 100D / (dh + dm) : Double.NaN;
+    }
+
+    /**
+     * @return the number of stored samples
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Writes the samples of all the checks (see {@link Snapshot}).
+     *
+     * @param  out the destination
+     * @throws IOException
+     */
+    static void writeAll(DataOutput out) throws IOException {
+        // The idle stores are not worth saving
+        evict(System.currentTimeMillis());
+        // Checks may add entries meanwhile, the count must match
+        List<Map.Entry<String,SampleStore>> entries = new ArrayList<Map.Entry<String,SampleStore>>(STORES.entrySet());
+        out.writeInt(entries.size());
+        for (Map.Entry<String,SampleStore> entry : entries) {
+            Snapshot.writeString(out, entry.getKey());
+            entry.getValue().write(out);
+        }
+    }
+
+    /**
+     * Reads the samples written by {@link #writeAll(DataOutput)}.
+     *
+     * @param  in the source
+     * @throws IOException
+     */
+    static void readAll(DataInput in) throws IOException {
+        for (int n = in.readInt(); n > 0; n--) {
+            // Idle until its samples say otherwise
+            SampleStore store = forCheck(Snapshot.readString(in));
+            store.used = 0;
+            store.read(in);
+        }
+    }
+
+    private synchronized void write(DataOutput out) throws IOException {
+        out.writeInt(size);
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (keys[slot] != null) {
+                int i = slot * STRIDE;
+                Snapshot.writeString(out, keys[slot]);
+                out.writeLong(data[i]);
+                out.writeLong(data[i + 1]);
+                out.writeLong(data[i + 2]);
+            }
+        }
+    }
+
+    private synchronized void read(DataInput in) throws IOException {
+        for (int n = in.readInt(); n > 0; n--) {
+            String key = Snapshot.readString(in);
+            long v1 = in.readLong();
+            long v2 = in.readLong();
+            long time = in.readLong();
+            put(slot(key), key, v1, v2, time);
+            used = Math.max(used, time);
+        }
+    }
+
+    /*
+     * Finds the slot of a key, or the empty
+     * slot where it should be inserted.
+     */
+    private int slot(String key) {
+        int mask = keys.length - 1;
+        int h = key.hashCode();
+        int slot = (h ^ (h >>> 16)) & mask;
+        while (keys[slot] != null && ! keys[slot].equals(key)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void put(int slot, String key, long v1, long v2, long now) {
+        if (keys[slot] == null) {
+            if ((size + 1) * 4 > keys.length * 3) {
+                resize(now);
+                slot = slot(key);
+            }
+            keys[slot] = key;
+            size++;
+        }
+        int i = slot * STRIDE;
+        data[i] = v1;
+        data[i + 1] = v2;
+        data[i + 2] = now;
+    }
+
+    /*
+     * Rehashes the live samples, doubling the table
+     * only if dropping the expired ones is not enough.
+     */
+    private void resize(long now) {
+        String[] oldKeys = keys;
+        long[] oldData = data;
+        int live = 0;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null && now - oldData[i * STRIDE + 2] < EXPIRY) {
+                live++;
+            }
+        }
+
+        int capacity = oldKeys.length;
+        while ((live + 1) * 2 > capacity) {
+            capacity *= 2;
+        }
+
+        keys = new String[capacity];
+        data = new long[capacity * STRIDE];
+        size = 0;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null && now - oldData[i * STRIDE + 2] < EXPIRY) {
+                int slot = slot(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                System.arraycopy(oldData, i * STRIDE, data, slot * STRIDE, STRIDE);
+                size++;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,215 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.wait4it.nagios.wasagent.core;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Decides when a test really has to query its target WAS
+ * instance, when the 'interval=min,max' query parameter
+ * (seconds) is set. Otherwise, the last result of the
+ * test is given back.
+ *
+ * The collection interval of a test (target, test and
+ * test params) adapts to its last results:
+ *
+ *   - the minimum interval when the test is not OK, when
+ *     a value is close to its warning threshold (80%) or
+ *     when a value moved by 20% or more
+ *   - unchanged when a value is halfway to its warning
+ *     threshold or moved by 5% or more
+ *   - twice as long otherwise, up to the maximum interval
+ *
+ * The 'wasagent.budget' system property limits the number
+ * of test runs per minute for the whole agent. When the
+ * budget is spent, stable tests keep their last result a
+ * bit longer, while tests at their minimum interval (and
+ * tests without any result yet) always run.
+ */
+public final class Scheduler {
+
+    // Last results, by test key
+    private static final ConcurrentMap<String,Entry> ENTRIES = new ConcurrentHashMap<String,Entry>();
+
+    // Test runs per minute, 0 for no limit
+    private static final int BUDGET = Integer.getInteger("wasagent.budget", 0).intValue();
+
+    // Entries not used for an hour are dropped
+    private static final long EXPIRY = 3600000L;
+
+    // Proximity and change levels
+    private static final double NEAR = 0.8D;
+    private static final double HALFWAY = 0.5D;
+    private static final double FAST = 0.2D;
+    private static final double SLOW = 0.05D;
+
+    private static double tokens = BUDGET;
+    private static long refill = System.currentTimeMillis();
+    private static int puts = 0;
+
+    private Scheduler() {
+    }
+
+    /**
+     * Gets the last result of a test, if the test
+     * does not have to run again yet.
+     *
+     * @param  key the test key
+     * @param  now the current time (ms)
+     * @return the last result, or null if the test should run
+     */
+    public static Result get(String key, long now) {
+        Entry entry = ENTRIES.get(key);
+        if (entry == null) {
+            acquire(now);
+            return null;
+        }
+        synchronized (entry) {
+            entry.used = now;
+            if (now - entry.time < entry.interval) {
+                return entry.result;
+            }
+            if (entry.interval <= entry.min || acquire(now)) {
+                return null;
+            }
+            return entry.result;
+        }
+    }
+
+    /**
+     * Stores a test result and computes when
+     * the test should run again.
+     *
+     * @param key    the test key
+     * @param result the test result
+     * @param min    the minimum interval (ms)
+     * @param max    the maximum interval (ms)
+     * @param now    the current time (ms)
+     */
+    public static void put(String key, Result result, long min, long max, long now) {
+        Entry entry = ENTRIES.get(key);
+        if (entry == null) {
+            entry = new Entry();
+            Entry existing = ENTRIES.putIfAbsent(key, entry);
+            if (existing != null) {
+                entry = existing;
+            }
+        }
+
+        Map<Integer,Double> values = values(result.getPerfdata());
+
+        synchronized (entry) {
+            double change = change(entry.values, values);
+            double proximity = result.getProximity();
+            if (entry.result == null || result.getStatus() != Status.OK || proximity >= NEAR || change >= FAST) {
+                entry.interval = min;
+            } else if (proximity < HALFWAY && change < SLOW) {
+                entry.interval = Math.min(entry.interval * 2, max);
+            }
+            entry.interval = Math.max(min, Math.min(entry.interval, max));
+            entry.min = min;
+            entry.result = result;
+            entry.values = values;
+            entry.time = now;
+            entry.used = now;
+        }
+
+        purge(now);
+    }
+
+    /*
+     * Takes a token from the run budget, if any is left.
+     */
+    private static synchronized boolean acquire(long now) {
+        if (BUDGET <= 0) {
+            return true;
+        }
+        tokens = Math.min(BUDGET, tokens + Math.max(now - refill, 0) * BUDGET / 60000D);
+        refill = now;
+        if (tokens >= 1) {
+            tokens--;
+            return true;
+        }
+        return false;
+    }
+
+    /*
+     * Drops the unused entries from time to time.
+     */
+    private static void purge(long now) {
+        synchronized (ENTRIES) {
+            if (++puts % 256 != 0) {
+                return;
+            }
+        }
+        for (Iterator<Entry> i = ENTRIES.values().iterator(); i.hasNext();) {
+            if (now - i.next().used > EXPIRY) {
+                i.remove();
+            }
+        }
+    }
+
+    /*
+     * The values kept by the test output, by label
+     * identifier, without parsing the output text.
+     */
+    private static Map<Integer,Double> values(Perfdata perfdata) {
+        Map<Integer,Double> values = new HashMap<Integer,Double>();
+        for (int i = 0; i < perfdata.valueCount(); i++) {
+            if (perfdata.isLive(i)) {
+                values.put(Integer.valueOf(perfdata.getLabel(i).getId()), Double.valueOf(perfdata.getValue(i)));
+            }
+        }
+        return values;
+    }
+
+    /*
+     * The largest relative change between two sets of values.
+     */
+    private static double change(Map<Integer,Double> previous, Map<Integer,Double> values) {
+        double change = 0;
+        if (previous == null) {
+            return change;
+        }
+        for (Map.Entry<Integer,Double> value : values.entrySet()) {
+            Double old = previous.get(value.getKey());
+            if (old != null) {
+                double v = value.getValue().doubleValue(), o = old.doubleValue();
+                change = Math.max(change, Math.abs(v - o) / Math.max(Math.abs(o), 1D));
+            }
+        }
+        return change;
+    }
+
+    private static final class Entry {
+
+        Result result;
+        Map<Integer,Double> values;
+        long time;
+        long used;
+        long interval;
+        long min;
+
+    }
+
+}
@@ -0,0 +1,198 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.wait4it.nagios.wasagent.core;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Saves the agent state to a local file, and loads it
+ * when the agent starts, so that the first checks after
+ * a restart already give interval values and do not
+ * have to discover the targets again.
+ *
+ * The state is made of the previous samples, the metric
+ * baselines and the discovery cache (including the target
+ * server and Perf MBean names) of every target. It is
+ * written as a compressed binary file, every minute and
+ * when the agent stops.
+ *
+ * The snapshot is enabled by the 'wasagent.state' system
+ * property (the state file path). 'wasagent.state.interval'
+ * sets the delay between two snapshots (seconds).
+ */
+public final class Snapshot {
+
+    // State file, null if snapshots are disabled
+    private static final String FILE = System.getProperty("wasagent.state");
+
+    // Delay between two snapshots (ms)
+    private static final long INTERVAL = Long.getLong("wasagent.state.interval", 60).longValue() * 1000;
+
+    // File layout
+    private static final int MAGIC = 0x57415354; // 'WAST'
+    private static final int VERSION = 4;
+
+    // Longest string read back, against a corrupted file (bytes)
+    private static final int MAX_STRING = 16 << 20;
+
+    private Snapshot() {
+    }
+
+    /**
+     * @return true if snapshots are enabled
+     */
+    public static boolean isEnabled() {
+        return FILE != null;
+    }
+
+    /**
+     * Loads the last snapshot, if any. A missing or
+     * unreadable file leaves the agent state empty.
+     */
+    public static void load() {
+        File file = new File(FILE);
+        if (! file.exists()) {
+            return;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                    return;
+                }
+                SampleStore.readAll(in);
+                Baseline.readAll(in);
+                Discovery.readAll(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes the agent state. The state is first serialized
+     * in memory, to hold the store locks only briefly, and
+     * the file is replaced once completely written.
+     *
+     * @throws IOException
+     */
+    public static synchronized void save() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(new GZIPOutputStream(bytes));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        SampleStore.writeAll(out);
+        Baseline.writeAll(out);
+        Discovery.writeAll(out);
+        out.close();
+
+        File file = new File(FILE);
+        File tmp = new File(FILE + ".tmp");
+        FileOutputStream stream = new FileOutputStream(tmp);
+        try {
+            bytes.writeTo(stream);
+        } finally {
+            stream.close();
+        }
+        if (! tmp.renameTo(file)) {
+            // Windows does not replace an existing file
+            file.delete();
+            if (! tmp.renameTo(file)) {
+                throw new IOException("cannot write " + file);
+            }
+        }
+    }
+
+    /**
+     * Writes a string as its UTF-8 length and bytes. Unlike
+     * writeUTF(), this does not fail on strings longer than
+     * 64 KB, such as the query of a check with many entries.
+     *
+     * @param  out the destination
+     * @param  s   the string
+     * @throws IOException
+     */
+    static void writeString(DataOutput out, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by {@link #writeString(DataOutput, String)}.
+     *
+     * @param  in the source
+     * @return the string
+     * @throws IOException if the length is invalid
+     */
+    static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING) {
+            throw new IOException("invalid string length in state file: " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * Starts the periodic snapshots, and saves the
+     * state one last time when the agent stops.
+     */
+    public static void schedule() {
+        Timer timer = new Timer("wasagent-snapshot", true);
+        timer.schedule(new TimerTask() {
+            @Override
+            public void run() {
+                try {
+                    save();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }, INTERVAL, INTERVAL);
+
+        Runtime.getRuntime().addShutdownHook(new Thread("wasagent-snapshot-exit") {
+            @Override
+            public void run() {
+                try {
+                    save();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+}
@@ -18,11 +18,14 @@
 
 package net.wait4it.nagios.wasagent.core;
 
+import javax.servlet.http.HttpServlet;
+
 import org.eclipse.jetty.server.Connector;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.bio.SocketConnector;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 /**
  * Instantiates the Jetty container and register
@@ -33,13 +36,53 @@ import org.eclipse.jetty.servlet.ServletHolder;
  */
 public class WASAgent {
 
+    // HTTP threads kept for the requests which are not
+    // queued: heartbeats, queue statistics, forwarding
+    private static final int SPARE_THREADS = 16;
+
     public static void main(String[] args) throws Exception {
         // Jetty server connector is created from plugin arguments
         String host = System.getProperty("wasagent.host");
         int port = Integer.parseInt(System.getProperty("wasagent.port"));
 
+        // Collector state saved by a previous run
+        if (Snapshot.isEnabled()) {
+            Snapshot.load();
+            Snapshot.schedule();
+        }
+
+        // Agents sharing the targets
+        Cluster cluster = Cluster.fromProperties();
+
+        // Known targets, warmed up before accepting checks
+        // Ownership is computed before any peer is found down
+        if (Warmup.isEnabled()) {
+            Warmup.fromProperties(cluster).run();
+        }
+
+        if (cluster != null) {
+            cluster.start();
+        }
+
         // Jetty server setup
+        Server server = createServer(host, port, new WASServlet(cluster));
+        server.start();
+        server.join();
+    }
+
+    /**
+     * Creates the Jetty container, with the given
+     * servlet as a unique entry point.
+     * 
+     * @param  host    the connector host
+     * @param  port    the connector port (0 for any free port)
+     * @param  servlet the agent servlet
+     * @return the Jetty server, not started yet
+     */
+    public static Server createServer(String host, int port, HttpServlet servlet) {
         Server server = new Server();
+        // Every running or queued check holds an HTTP thread
+        server.setThreadPool(new QueuedThreadPool(Priority.capacity() + SPARE_THREADS));
         SocketConnector connector = new SocketConnector();
         connector.setHost(host);
         connector.setPort(port);
@@ -51,10 +94,9 @@ public class WASAgent {
         ServletContextHandler handler = new ServletContextHandler(ServletContextHandler.SESSIONS);
         handler.setContextPath("/wasagent");
         server.setHandler(handler);
-        handler.addServlet(new ServletHolder(new WASServlet()), "/*");
+        handler.addServlet(new ServletHolder(servlet), "/*");
 
-        server.start();
-        server.join();
+        return server;
     }
 
 }
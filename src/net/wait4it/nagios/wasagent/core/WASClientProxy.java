@@ -20,14 +20,17 @@ package net.wait4it.nagios.wasagent.core;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
 
+import javax.management.InstanceNotFoundException;
 import javax.management.ObjectName;
 
 import com.ibm.websphere.management.AdminClient;
-import com.ibm.websphere.management.AdminClientFactory;
+import com.ibm.websphere.management.exception.ConnectorException;
 import com.ibm.websphere.pmi.stat.MBeanStatDescriptor;
 import com.ibm.websphere.pmi.stat.StatDescriptor;
 import com.ibm.websphere.pmi.stat.WSStats;
@@ -39,6 +42,14 @@ import com.ibm.websphere.pmi.stat.WSStats;
  * from the 'wasagent.properties' file, and the specific
  * params are given through HTTP query parameters.
  * 
+ * The AdminClient of a target is kept between checks
+ * (see {@link Connection}). When a call fails with a
+ * connector error, the proxy connects again and retries
+ * the call once.
+ * 
+ * The responses of the target may be recorded, to
+ * replay them later (see {@link Capture}).
+ * 
  * @author Yann Lambret
  *
  */
@@ -47,11 +58,21 @@ public class WASClientProxy {
     private static FileInputStream stream = null;
     private static Properties defaults = new Properties();
 
+    // Smallest output size limit, which leaves room for the
+    // status line and the summary of the left out items (bytes)
+    private static final int MIN_SIZE = 256;
+
     private Map<String,String> params; // HTTP request params
     private Properties props;          // Connection properties
+    private Connection connection;     // Target connection
     private AdminClient client;        // WebSphere JMX client
     private ObjectName serverMBean;    // WebSphere server MBean
     private ObjectName perfMBean;      // WebSphere Perf MBean
+    private int top;                   // Reported instances per test
+    private int maxSize;               // Output size limit (bytes)
+    private long minInterval;          // Collection intervals (ms)
+    private long maxInterval;
+    private Capture capture;           // Recorded responses, if enabled
 
     // Loads WebSphere generic configuration
     static {
@@ -76,11 +97,34 @@ public class WASClientProxy {
      */
     public WASClientProxy(Map<String,String> params) {
         this.params = params;
+
+        // Output limits, 0 means no limit
+        top = getLimit("top");
+        maxSize = getLimit("maxsize");
+        if (maxSize > 0 && maxSize < MIN_SIZE) {
+            throw new IllegalArgumentException("invalid 'maxsize' parameter: " + maxSize + " (at least " + MIN_SIZE + " bytes)");
+        }
+
+        // Collection intervals, see Scheduler
+        String interval = params.get("interval");
+        if (interval != null) {
+            String[] fields = interval.split(",");
+            try {
+                minInterval = Long.parseLong(fields[0].trim()) * 1000;
+                maxInterval = fields.length > 1 ? Long.parseLong(fields[1].trim()) * 1000 : minInterval;
+            } catch (NumberFormatException e) {
+                minInterval = -1;
+            }
+            if (fields.length > 2 || minInterval < 0 || maxInterval < minInterval) {
+                throw new IllegalArgumentException("invalid 'interval' parameter: " + interval);
+            }
+        }
     }
 
     /**
-     * Proxy initialization. Gets an AdminClient instance first,
-     * and then the Perf MBean for the target WAS instance.
+     * Proxy initialization. Gets the AdminClient of the target
+     * first (connecting if there is none yet), and then the
+     * Perf MBean for the target WAS instance.
      * 
      * @throws Exception
      */
@@ -96,12 +140,18 @@ public class WASClientProxy {
         props.setProperty(AdminClient.CONNECTOR_HOST, params.get("hostname"));
         props.setProperty(AdminClient.CONNECTOR_PORT, params.get("port"));
 
-        client = AdminClientFactory.createAdminClient(props);
+        if (Capture.isEnabled()) {
+            capture = Capture.forTarget(getTarget());
+        }
+
+        connection = Connection.forTarget(getTarget());
+        connect();
 
         // We need the perf MBean to query stats objects or other MBeans
         // The server MBean is used to retrieve the logical instance name
-        serverMBean = getMBean("WebSphere:*,type=Server");
-        perfMBean = getMBean("WebSphere:*,type=Perf");
+        // Both are taken from the discovery cache when possible
+        serverMBean = findMBean("WebSphere:*,type=Server");
+        perfMBean = findMBean("WebSphere:*,type=Perf");
     }
 
     /**
@@ -119,7 +169,119 @@ public class WASClientProxy {
         // We want the query to be recursive
         Object[] parameters = new Object[] {msd, new Boolean(true)};
         String[] signature = new String[] {"com.ibm.websphere.pmi.stat.MBeanStatDescriptor", "java.lang.Boolean"};
-        return (WSStats)client.invoke(perfMBean, "getStatsObject", parameters, signature);
+        long start = System.nanoTime();
+        try {
+            WSStats stats;
+            try {
+                stats = (WSStats)client.invoke(perfMBean, "getStatsObject", parameters, signature);
+            } catch (ConnectorException e) {
+                reconnect();
+                stats = (WSStats)client.invoke(perfMBean, "getStatsObject", parameters, signature);
+            }
+            record(Capture.STATS, name, start, stats);
+            return stats;
+        } catch (Exception e) {
+            record(Capture.STATS, name, start, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the PMI stats for a list of stats paths, in
+     * a single remote call. This avoids fetching huge
+     * recursive trees when only a few nodes are needed.
+     * 
+     * @param  paths     the stats paths, each one starting with
+     *                   the NAME field of a PMI interface
+     * @param  recursive true to fetch the subtree of each node
+     * @return a WSStats object for each path (null if not found)
+     * @throws Exception
+     */
+    public WSStats[] getStats(List<String[]> paths, boolean recursive) throws Exception {
+        MBeanStatDescriptor[] msds = new MBeanStatDescriptor[paths.size()];
+        for (int i = 0; i < msds.length; i++) {
+            msds[i] = new MBeanStatDescriptor(serverMBean, new StatDescriptor(paths.get(i)));
+        }
+
+        Object[] parameters = new Object[] {msds, Boolean.valueOf(recursive)};
+        String[] signature = new String[] {"[Lcom.ibm.websphere.pmi.stat.MBeanStatDescriptor;", "java.lang.Boolean"};
+        String key = capture == null ? null : Capture.key(paths, recursive);
+        long start = System.nanoTime();
+        try {
+            WSStats[] stats;
+            try {
+                stats = (WSStats[])client.invoke(perfMBean, "getStatsArray", parameters, signature);
+            } catch (ConnectorException e) {
+                reconnect();
+                stats = (WSStats[])client.invoke(perfMBean, "getStatsArray", parameters, signature);
+            }
+            record(Capture.STATS_ARRAY, key, start, stats);
+            return stats;
+        } catch (Exception e) {
+            record(Capture.STATS_ARRAY, key, start, e);
+            throw e;
+        }
+    }
+
+    /**
+     * @return the number of instances reported by a test
+     *         (the worst ones), or 0 to report them all
+     */
+    public int getTop() {
+        return top;
+    }
+
+    /**
+     * @return the maximum size of the plugin output (bytes),
+     *         or 0 if the output size is not limited
+     */
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return the minimum collection interval (ms), 0 if
+     *         every check queries the target
+     */
+    public long getMinInterval() {
+        return minInterval;
+    }
+
+    /**
+     * @return the maximum collection interval (ms)
+     */
+    public long getMaxInterval() {
+        return maxInterval;
+    }
+
+    /**
+     * Gets the target identifier, used as a key for
+     * the data we keep between two checks.
+     * 
+     * @return the target host and SOAP port (host:port)
+     */
+    public String getTarget() {
+        return params.get("hostname") + ":" + params.get("port");
+    }
+
+    /**
+     * Gets the check identifier, used as a key for the
+     * samples we keep between two checks. Two Nagios
+     * services which poll the same target with other
+     * test parameters get their own samples, while
+     * identical queries share them.
+     * 
+     * @return the sorted HTTP query parameters
+     */
+    public String getCheck() {
+        StringBuilder check = new StringBuilder();
+        for (Map.Entry<String,String> param : new TreeMap<String,String>(params).entrySet()) {
+            if (check.length() > 0) {
+                check.append('&');
+            }
+            check.append(param.getKey()).append('=').append(param.getValue());
+        }
+        return check.toString();
     }
 
     /**
@@ -129,7 +291,17 @@ public class WASClientProxy {
      * @throws Exception
      */
     public String getServerName() throws Exception {
-        return (String)getAttribute(serverMBean, "name");
+        return getServerAttribute("name");
+    }
+
+    /**
+     * Gets the target application server logical name
+     * from the discovery cache, without any remote call.
+     * 
+     * @return the instance name, or null if it is not known
+     */
+    public String getKnownServerName() {
+        return Discovery.forTarget(getTarget()).getValue("name", System.currentTimeMillis());
     }
 
     /**
@@ -139,7 +311,7 @@ public class WASClientProxy {
      * @throws Exception
      */
     public String getServerVersion() throws Exception {
-        return (String)getAttribute(serverMBean, "platformVersion");
+        return getServerAttribute("platformVersion");
     }
 
     /**
@@ -151,7 +323,58 @@ public class WASClientProxy {
      */
     @SuppressWarnings("unchecked")
     public Set<ObjectName> getMBeans(String query) throws Exception {
-        return client.queryNames(new ObjectName(query), null);
+        long start = System.nanoTime();
+        try {
+            Set<ObjectName> mbeans;
+            try {
+                mbeans = client.queryNames(new ObjectName(query), null);
+            } catch (ConnectorException e) {
+                reconnect();
+                mbeans = client.queryNames(new ObjectName(query), null);
+            }
+            record(Capture.QUERY, query, start, mbeans);
+            return mbeans;
+        } catch (Exception e) {
+            record(Capture.QUERY, query, start, e);
+            throw e;
+        }
+    }
+
+    /**
+     * Gets a set of MBeans from the target discovery cache,
+     * querying the target only when the cache is stale.
+     * 
+     * @param  query
+     * @return all the MBeans matching a specific query
+     * @throws Exception
+     */
+    public Set<ObjectName> findMBeans(String query) throws Exception {
+        Discovery discovery = Discovery.forTarget(getTarget());
+        long now = System.currentTimeMillis();
+        Set<ObjectName> mbeans = discovery.get(query, now);
+        if (mbeans == null) {
+            mbeans = getMBeans(query);
+            discovery.put(query, mbeans, now);
+        }
+        return mbeans;
+    }
+
+    /**
+     * Gets a single MBean from the target discovery cache.
+     * On a miss, the query is forgotten, so that the next
+     * check queries the target again.
+     * 
+     * @param  query
+     * @return a unique MBean matching a specific query
+     * @throws Exception if no MBean matches the query
+     */
+    private ObjectName findMBean(String query) throws Exception {
+        Set<ObjectName> mbeans = findMBeans(query);
+        if (mbeans.isEmpty()) {
+            Discovery.forTarget(getTarget()).remove(query);
+            throw new InstanceNotFoundException("no MBean matches '" + query + "'");
+        }
+        return mbeans.iterator().next();
     }
 
     /**
@@ -175,7 +398,87 @@ public class WASClientProxy {
      * @throws Exception
      */
     public Object getAttribute(ObjectName mbean, String attribute) throws Exception {
-        return client.getAttribute(mbean, attribute);
+        String key = capture == null ? null : Capture.key(mbean.getCanonicalName(), attribute);
+        long start = System.nanoTime();
+        try {
+            Object value;
+            try {
+                value = client.getAttribute(mbean, attribute);
+            } catch (ConnectorException e) {
+                reconnect();
+                value = client.getAttribute(mbean, attribute);
+            }
+            record(Capture.ATTRIBUTE, key, start, value);
+            return value;
+        } catch (Exception e) {
+            record(Capture.ATTRIBUTE, key, start, e);
+            throw e;
+        }
+    }
+
+    /*
+     * Gets the client of the target from its connection.
+     */
+    private void connect() throws Exception {
+        long start = System.nanoTime();
+        try {
+            client = connection.get(props);
+            record(Capture.CONNECT, "", start, null);
+        } catch (Exception e) {
+            record(Capture.CONNECT, "", start, e);
+            throw e;
+        }
+    }
+
+    /*
+     * Drops the client after a connector error, and
+     * connects again.
+     */
+    private void reconnect() throws Exception {
+        connection.reset(client);
+        connect();
+    }
+
+    /*
+     * Records a remote call, when the capture is enabled.
+     */
+    private void record(byte kind, String key, long start, Object value) {
+        if (capture != null) {
+            capture.record(kind, key, start, value);
+        }
+    }
+
+    /*
+     * Gets a static attribute of the server MBean
+     * through the target discovery cache.
+     */
+    private String getServerAttribute(String attribute) throws Exception {
+        Discovery discovery = Discovery.forTarget(getTarget());
+        long now = System.currentTimeMillis();
+        String value = discovery.getValue(attribute, now);
+        if (value == null) {
+            value = (String)getAttribute(serverMBean, attribute);
+            discovery.putValue(attribute, value, now);
+        }
+        return value;
+    }
+
+    /*
+     * Parses an optional numeric query parameter.
+     */
+    private int getLimit(String name) {
+        String value = params.get(name);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            int limit = Integer.parseInt(value.trim());
+            if (limit >= 0) {
+                return limit;
+            }
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("invalid '" + name + "' parameter: " + value);
     }
 
 }
@@ -19,11 +19,21 @@
 package net.wait4it.nagios.wasagent.core;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
 
 import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -33,7 +43,24 @@ import javax.servlet.http.HttpServletResponse;
 /**
  * Builds a HashMap with the HTTP query parameters,
  * calls WASStatsManager process method and display
- * the result as plain old text
+ * the result as plain old text. The '/history' path
+ * gives the recent values of a metric (see {@link History}).
+ * 
+ * In cluster mode, checks of a target owned by another
+ * agent are forwarded to it, or the client is redirected
+ * (see {@link Cluster}). The '/ping' path answers the
+ * heartbeat of the other agents.
+ * 
+ * Checks and history queries run in the thread pool of
+ * their priority class (see {@link Priority}), whose queue
+ * statistics are given by the '/queues' path. A request
+ * which cannot be queued is rejected at once with a 503
+ * status, and a request which does not end in time is
+ * cancelled. Both get an UNKNOWN status line.
+ * 
+ * The '/status' path gives the state of the agent itself,
+ * such as the metrics the history had to drop and the
+ * outcome of the warm-up of the known targets.
  * 
  * @author Yann Lambret
  *
@@ -41,11 +68,31 @@ import javax.servlet.http.HttpServletResponse;
 @SuppressWarnings("serial")
 public class WASServlet extends HttpServlet {
 
+    // Longest wait for a request (ms), above the SOAP timeout
+    // and below the idle time of the agent connector (25 s)
+    private static final long TIMEOUT = 21000;
+
+    // Delay before a rejected request is sent again (s)
+    private static final int RETRY_AFTER = 10;
+
+    private final Cluster cluster;
+
+    public WASServlet() {
+        this(null);
+    }
+
+    /**
+     * @param cluster the agents sharing the targets, null for a single agent
+     */
+    public WASServlet(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
     @Override
     @SuppressWarnings("unchecked")
-    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-        Map<String,String> params = new HashMap<String,String>();
-        WASStatsManager manager = new WASStatsManager();
+    protected void doGet(HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+        final Map<String,String> params = new HashMap<String,String>();
+        final WASStatsManager manager = createManager();
 
         for (Enumeration<String> e = request.getParameterNames(); e.hasMoreElements();) {
             String param = e.nextElement();
@@ -53,15 +100,305 @@ public class WASServlet extends HttpServlet {
         }
 
         response.setContentType("text/plain");
+
+        // Heartbeat of the other agents
+        if ("/ping".equals(request.getPathInfo())) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.getWriter().write("OK");
+            return;
+        }
+
+        // Targets owned by another agent
+        boolean forwarded = params.remove(Cluster.FORWARDED) != null;
+        if (cluster != null && ! forwarded && params.get("hostname") != null && route(request, params, response)) {
+            return;
+        }
+
+        // Queue statistics of the priority classes
+        if ("/queues".equals(request.getPathInfo())) {
+            Perfdata perfdata = new Perfdata();
+            Priority.report(perfdata);
+            response.setStatus(HttpServletResponse.SC_OK);
+            PrintWriter out = response.getWriter();
+            out.write("0|wasagent: queues|");
+            perfdata.writeTo(out);
+            out.flush();
+            return;
+        }
+
+        // State of the agent itself
+        if ("/status".equals(request.getPathInfo())) {
+            Perfdata perfdata = new Perfdata();
+            History.report(perfdata);
+            Warmup.report(perfdata);
+            response.setStatus(HttpServletResponse.SC_OK);
+            PrintWriter out = response.getWriter();
+            out.write("0|wasagent: status|");
+            perfdata.writeTo(out);
+            out.flush();
+            return;
+        }
+
+        // History exports are bulk work, unless told otherwise
+        boolean history = "/history".equals(request.getPathInfo());
+        Priority priority;
+        try {
+            priority = history && ! params.containsKey(Priority.PARAM) ? Priority.BULK : Priority.forCheck(params);
+        } catch (IllegalArgumentException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return;
+        }
+
+        final Output out = new Output(response);
+
+        // Metric history queries
+        if (history) {
+            execute(priority, new Callable<Void>() {
+                public Void call() throws IOException {
+                    history(params, out);
+                    return null;
+                }
+            }, response, out);
+            return;
+        }
+
         response.setStatus(HttpServletResponse.SC_OK);
 
-        PrintWriter out = response.getWriter();
-        out.print(manager.process(params));
+        execute(priority, new Callable<Void>() {
+            public Void call() throws IOException {
+                manager.process(params, out);
+                out.flush();
+                return null;
+            }
+        }, response, out);
+    }
+
+    /**
+     * @return a new stats manager, for one request
+     */
+    protected WASStatsManager createManager() {
+        return new WASStatsManager();
+    }
+
+    /*
+     * Runs a request in the thread pool of its class, and
+     * waits for the end of the request. A request which times
+     * out is cancelled, and answered UNKNOWN rather than with
+     * an HTTP error that the plugin would turn into a CRITICAL
+     * status. A rejected request gets a 503 status, so that
+     * other clients may retry it later, with an UNKNOWN body.
+     */
+    private void execute(Priority priority, Callable<Void> task, HttpServletResponse response, Output out) throws ServletException, IOException {
+        Future<Void> future;
+        try {
+            future = priority.submit(task);
+        } catch (RejectedExecutionException e) {
+            if (out.shut()) {
+                response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                response.setIntHeader("Retry-After", RETRY_AFTER);
+                answer(response, "too many " + priority.getName() + " requests");
+            }
+            return;
+        }
+        try {
+            future.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // From now on, the task cannot touch the response
+            future.cancel(true);
+            if (out.shut()) {
+                response.setStatus(HttpServletResponse.SC_OK);
+                answer(response, priority.getName() + " request timed out");
+            }
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new ServletException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ServletException(cause);
+        }
+    }
+
+    /*
+     * Writes an UNKNOWN status line, once the task
+     * output is shut.
+     */
+    private static void answer(HttpServletResponse response, String message) throws IOException {
+        PrintWriter writer = response.getWriter();
+        writer.write("3|wasagent: status UNKNOWN - " + message);
+        writer.flush();
+    }
+
+    /*
+     * Hands a check over to the agent which owns its target.
+     * Returns false if the check has to be run locally.
+     */
+    private boolean route(HttpServletRequest request, Map<String,String> params, HttpServletResponse response) throws IOException {
+        String owner = cluster.owner(params.get("hostname") + ":" + params.get("port"));
+        String path = request.getPathInfo() == null ? "" : request.getPathInfo();
+        if (owner.equals(cluster.getSelf())) {
+            return false;
+        }
+
+        if (cluster.isRedirect()) {
+            response.sendRedirect(cluster.url(owner, path, params));
+            return true;
+        }
+
+        HttpURLConnection connection;
+        try {
+            connection = cluster.open(owner, path, params);
+        } catch (IOException e) {
+            // The check is run locally, until the owner is back
+            cluster.setDown(owner);
+            return false;
+        }
+        try {
+            int status;
+            try {
+                status = connection.getResponseCode();
+            } catch (IOException e) {
+                // The owner is up but slow (e.g. a hung target), it keeps its targets
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.getWriter().write("3|wasagent: status UNKNOWN - no answer from agent " + owner + " (" + e + ")");
+                return true;
+            }
+            response.setStatus(status);
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                OutputStream out = response.getOutputStream();
+                byte[] buffer = new byte[8192];
+                for (int n; (n = in.read(buffer)) >= 0;) {
+                    out.write(buffer, 0, n);
+                }
+                in.close();
+                out.flush();
+            }
+        } finally {
+            connection.disconnect();
+        }
+        return true;
+    }
+
+    /*
+     * Writes the stored samples of one metric. Params are the
+     * target 'hostname' and 'port', the 'metric' label, and the
+     * 'from' and 'to' range bounds in seconds since the epoch
+     * (negative values are relative to now). The default range
+     * is the last hour.
+     */
+    private void history(Map<String,String> params, Output out) throws IOException {
+        if (! History.isEnabled()) {
+            out.sendError(HttpServletResponse.SC_NOT_FOUND, "history is disabled");
+            return;
+        }
+        if (params.get("hostname") == null || params.get("port") == null || params.get("metric") == null) {
+            out.sendError(HttpServletResponse.SC_BAD_REQUEST, "hostname, port and metric are required");
+            return;
+        }
+
+        long now = System.currentTimeMillis() / 1000;
+        long from, to;
+        try {
+            from = time(params.get("from"), now - 3600, now);
+            to = time(params.get("to"), now, now);
+        } catch (NumberFormatException e) {
+            out.sendError(HttpServletResponse.SC_BAD_REQUEST, "invalid time range");
+            return;
+        }
+
+        // Unknown targets get no history files
+        History target = History.find(params.get("hostname") + ":" + params.get("port"));
+        if (target == null) {
+            out.sendError(HttpServletResponse.SC_NOT_FOUND, "no history for this target");
+            return;
+        }
+
+        out.setStatus(HttpServletResponse.SC_OK);
+
+        target.query(params.get("metric"), from, to, out);
         out.flush();
     }
 
+    private static long time(String param, long defaultTime, long now) {
+        if (param == null) {
+            return defaultTime;
+        }
+        long time = Long.parseLong(param.trim());
+        return time < 0 ? now + time : time;
+    }
+
     protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
         doGet(request, response);
     }
 
+    /*
+     * The response of a request run in a thread pool, as
+     * seen by the task. Once the request is answered by the
+     * servlet (rejected or timed out), what the task still
+     * writes is dropped, and its status changes are ignored.
+     */
+    private static final class Output extends Writer {
+
+        private final HttpServletResponse response;
+        private final Writer out;
+        private boolean used = false;
+        private boolean shut = false;
+
+        Output(HttpServletResponse response) throws IOException {
+            this.response = response;
+            this.out = response.getWriter();
+        }
+
+        @Override
+        public synchronized void write(char[] buffer, int offset, int length) throws IOException {
+            if (! shut) {
+                used = true;
+                out.write(buffer, offset, length);
+            }
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (! shut) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() {
+            // The servlet container closes the response
+        }
+
+        synchronized void setStatus(int status) {
+            if (! shut) {
+                response.setStatus(status);
+            }
+        }
+
+        synchronized void sendError(int status, String message) throws IOException {
+            if (! shut) {
+                used = true;
+                response.sendError(status, message);
+            }
+        }
+
+        /*
+         * Drops the next writes. Returns true if
+         * nothing was written yet.
+         */
+        synchronized boolean shut() {
+            shut = true;
+            return ! used;
+        }
+
+    }
+
 }
@@ -18,6 +18,12 @@
 
 package net.wait4it.nagios.wasagent.core;
 
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -26,9 +32,11 @@ import java.util.Map;
  */
 public class WASStatsManager {
 
-    private StringBuilder header = new StringBuilder();
+    // Room kept for the truncated output summary (bytes)
+    private static final int SUMMARY = 48;
+
     private StringBuilder message = new StringBuilder();
-    private StringBuilder output = new StringBuilder();
+    private List<Perfdata> output = new ArrayList<Perfdata>();
     private String status = "OK";
     private int code = 0;
 
@@ -40,56 +48,214 @@ public class WASStatsManager {
      * @return output Nagios performance data
      */
     public String process(Map<String, String> params) {
+        StringWriter out = new StringWriter();
+        try {
+            process(params, out);
+        } catch (IOException ignored) {
+            // Cannot happen with a StringWriter
+        }
+        return out.toString();
+    }
+
+    /**
+     * Same as above, but the test results are written
+     * straight to the destination writer, without
+     * building the whole output string first.
+     * 
+     * When the 'interval' query parameter is set, tests
+     * which do not have to run yet give their last result
+     * (see {@link Scheduler}), and the target is not even
+     * contacted if none has to run.
+     * 
+     * When the 'maxsize' query parameter is set, the
+     * performance data items which do not fit in are
+     * left out and counted in the status line, since
+     * Nagios would silently truncate the output. The
+     * status line itself may be shortened, but never
+     * before the status, and 'maxsize' values too small
+     * for a status line are rejected.
+     * 
+     * @param  params HTTP request params
+     * @param  out    the destination writer
+     * @throws IOException
+     */
+    public void process(Map<String, String> params, Writer out) throws IOException {
         WASClientProxy proxy = null;
         String serverName = "";
+        Map<Option,Result> results = new EnumMap<Option,Result>(Option.class);
+        long now = System.currentTimeMillis();
 
         try {
-            proxy = new WASClientProxy(params);
-            proxy.init();
-            // We get the target instance name
-            serverName = proxy.getServerName();
+            proxy = createProxy(params);
+
+            // Last results which are still recent enough
+            boolean remote = true;
+            if (proxy.getMinInterval() > 0) {
+                remote = false;
+                for (Option option : Option.values()) {
+                    if (params.containsKey(option.getName())) {
+                        Result result = Scheduler.get(key(proxy, option, params), now);
+                        results.put(option, result);
+                        remote |= result == null;
+                    }
+                }
+                serverName = proxy.getKnownServerName();
+                remote |= serverName == null;
+            }
+
+            if (remote) {
+                proxy.init();
+                // We get the target instance name
+                serverName = proxy.getServerName();
+            }
         } catch (Exception e) {
             e.printStackTrace();
-            return "2|" + e;
+            out.write("2|" + e);
+            return;
         }
 
+        List<Perfdata> collected = new ArrayList<Perfdata>();
         for (Option option : Option.values()) {
             if (params.containsKey(option.getName())) {
-                checkResult(option.getTest().run(proxy, params.get(option.getName())));
+                Result result = results.get(option);
+                if (result == null) {
+                    result = option.getTest().run(proxy, params.get(option.getName()));
+                    if (proxy.getMinInterval() > 0) {
+                        Scheduler.put(key(proxy, option, params), result, proxy.getMinInterval(), proxy.getMaxInterval(), now);
+                    }
+                    collected.add(result.getPerfdata());
+                }
+                checkResult(result);
             }
         }
 
-        header.append(serverName + ": ");
-        header.append("status " + status);
+        // Cached MBean names may be stale, discover them again
+        if (code == 3) {
+            Discovery.forTarget(proxy.getTarget()).clear();
+        }
+
+        // Keeps the collected values for later queries
+        if (History.isEnabled()) {
+            try {
+                History history = History.forTarget(proxy.getTarget());
+                for (Perfdata perfdata : collected) {
+                    history.record(perfdata, now);
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        StringBuilder header = new StringBuilder();
+        header.append(code).append('|').append(serverName).append(": status ").append(status);
+        int prefix = header.length();
 
         // Something went wrong. We should get useful information
         // from the message string
         if (! status.equals("OK") && message.length() > 0) {
-            header.append(" - " + message.toString());
+            header.append(" - ").append(message);
         }
 
-        output.insert(0, header + "|");
-        output.insert(0, code + "|");
-        return output.toString();
+        // Number of items written for each test
+        int[] items = new int[output.size()];
+        for (int i = 0; i < items.length; i++) {
+            items[i] = output.get(i).size();
+        }
+
+        int limit = proxy.getMaxSize();
+        if (limit > 0) {
+            int budget = limit - SUMMARY - 1;
+            if (Perfdata.bytes(header.toString()) > budget) {
+                truncate(header, budget, prefix);
+            }
+            budget -= Perfdata.bytes(header.toString());
+
+            int dropped = 0;
+            for (int i = 0; i < items.length; i++) {
+                Perfdata perfdata = output.get(i);
+                for (int j = 0; j < perfdata.size(); j++) {
+                    int size = perfdata.bytes(j) + 1;
+                    if (dropped > 0 || size > budget) {
+                        dropped += perfdata.size() - j;
+                        items[i] = j;
+                        break;
+                    }
+                    budget -= size;
+                }
+            }
+            if (dropped > 0) {
+                header.append(" (").append(dropped).append(" more perfdata items)");
+            }
+        }
+
+        out.write(header.toString());
+        out.write('|');
+        boolean first = true;
+        for (int i = 0; i < items.length; i++) {
+            if (items[i] > 0) {
+                if (! first) {
+                    out.write(' ');
+                }
+                output.get(i).writeTo(out, items[i]);
+                first = false;
+            }
+        }
+    }
+
+    /**
+     * Instantiates the proxy for the target WAS instance.
+     * Benchmarks override it to query fake stats instead.
+     * 
+     * @param  params HTTP request params
+     * @return an applicative proxy for the target WAS instance
+     */
+    protected WASClientProxy createProxy(Map<String, String> params) {
+        return new WASClientProxy(params);
+    }
+
+    /*
+     * Shortens a status line to a size in bytes. The first
+     * characters (return code, server name and status) are
+     * always kept, since the plugin needs the return code.
+     */
+    private static void truncate(StringBuilder s, int bytes, int prefix) {
+        // Each character is at least one byte long
+        int excess = Perfdata.bytes(s.toString()) - Math.max(bytes - 3, 0);
+        int end = Math.max(s.length() - excess, prefix);
+        if (end >= s.length()) {
+            return;
+        }
+        if (end > prefix && Character.isHighSurrogate(s.charAt(end - 1))) {
+            end--;
+        }
+        s.setLength(end);
+        s.append("...");
+    }
+
+    /*
+     * Identifies a test for the scheduler.
+     */
+    private static String key(WASClientProxy proxy, Option option, Map<String, String> params) {
+        return proxy.getTarget() + "|" + option.getName() + "=" + params.get(option.getName()) + "|" + proxy.getTop();
     }
 
     private void checkResult(Result result) {
-        String out = "";
+        Perfdata out = null;
         String msg = "";
 
         switch (result.getStatus()) {
         case OK:
-            out = result.getOutput();
+            out = result.getPerfdata();
             break;
         case WARNING:
             if (code < 1) { code = 1; status = "WARNING"; }
             msg = result.getMessage();
-            out = result.getOutput();
+            out = result.getPerfdata();
             break;
         case CRITICAL:
             if (code < 2) { code = 2; status = "CRITICAL"; }
             msg = result.getMessage();
-            out = result.getOutput();
+            out = result.getPerfdata();
             break;
         case UNKNOWN:
             code = 3;
@@ -105,11 +271,8 @@ public class WASStatsManager {
             message.append(msg);
         }
 
-        if (out.length() > 0) {
-            if (output.length() > 0) {
-                output.append(" ");
-            }
-            output.append(out);
+        if (out != null && ! out.isEmpty()) {
+            output.add(out);
         }
     }
 
@@ -0,0 +1,247 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+
+package net.wait4it.nagios.wasagent.core;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.wait4it.nagios.wasagent.tests.EJBTest;
+import net.wait4it.nagios.wasagent.tests.MDBTest;
+
+/**
+ * Connects to the known target WAS instances when the
+ * agent starts, before it accepts any check, so that the
+ * first checks do not all pay for the connection setup
+ * and the discovery of the target at once.
+ *
+ * For each target, the warm-up connects (loading the
+ * connector and SSL classes on the way), finds the Server
+ * and Perf MBeans, the server name, and the EJB, message
+ * endpoint and garbage collector MBeans, which all go to
+ * the discovery cache (see {@link Discovery}). The client
+ * is kept for the checks of the target, which then skip
+ * the connection setup (see {@link Connection}). Targets
+ * are warmed up in parallel, by a bounded number of
+ * threads. A target which cannot be reached is simply
+ * left for the first check to try again.
+ *
+ * The warm-up is enabled by the 'wasagent.targets' system
+ * property, a file with one target (host:port) per line.
+ * Blank lines and lines starting with '#' are ignored.
+ * 'wasagent.warmup.threads' sets the number of targets
+ * warmed up at the same time (default 8), and
+ * 'wasagent.warmup.timeout' the longest time the agent
+ * waits before accepting checks (seconds, default 300).
+ * In cluster mode, only the targets owned by this agent
+ * are warmed up. The outcome of the last warm-up (targets
+ * warmed up, failed or left to the first checks, and its
+ * duration) is given by the '/status' path of the agent
+ * (see {@link #report(Perfdata)}).
+ */
+public class Warmup {
+
+    // Targets file, null if the warm-up is disabled
+    private static final String FILE = System.getProperty("wasagent.targets");
+
+    private static final int THREADS = Integer.getInteger("wasagent.warmup.threads", 8).intValue();
+    private static final long TIMEOUT = Long.getLong("wasagent.warmup.timeout", 300).longValue() * 1000;
+
+    // MBean queries run by the tests through the discovery cache
+    private static final String[] QUERIES;
+
+    static {
+        int n = EJBTest.TYPES.length;
+        QUERIES = new String[n + MDBTest.TYPES.length + 1];
+        for (int i = 0; i < n; i++) {
+            QUERIES[i] = "WebSphere:*,type=" + EJBTest.TYPES[i];
+        }
+        for (int i = 0; i < MDBTest.TYPES.length; i++) {
+            QUERIES[n + i] = "WebSphere:*,type=" + MDBTest.TYPES[i];
+        }
+        QUERIES[QUERIES.length - 1] = "java.lang:type=GarbageCollector,*";
+    }
+
+    // Last warm-up run, null if none
+    private static volatile Warmup last;
+
+    private final List<String> targets;
+    private final AtomicInteger done = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private volatile long duration = -1;
+
+    /**
+     * @return true if the warm-up is enabled
+     */
+    public static boolean isEnabled() {
+        return FILE != null;
+    }
+
+    /**
+     * Writes the outcome of the last warm-up as performance
+     * data, nothing if no warm-up ran.
+     *
+     * @param out the agent status output
+     */
+    public static void report(Perfdata out) {
+        Warmup warmup = last;
+        if (warmup == null) {
+            return;
+        }
+        int done = warmup.done.get();
+        int failed = warmup.failed.get();
+        out.begin();
+        out.append("warmup-targets=").append(warmup.targets.size());
+        out.end();
+        out.begin();
+        out.append("warmup-done=").append(done - failed);
+        out.end();
+        out.begin();
+        out.append("warmup-failed=").append(failed);
+        out.end();
+        out.begin();
+        out.append("warmup-pending=").append(warmup.targets.size() - done);
+        out.end();
+        if (warmup.duration >= 0) {
+            out.begin();
+            out.append("warmup-time=").append(warmup.duration).append("ms");
+            out.end();
+        }
+    }
+
+    /**
+     * Reads the 'wasagent.targets' file.
+     *
+     * @param  cluster the agents sharing the targets, null for a single agent
+     * @return the warm-up of the targets owned by this agent
+     * @throws IOException
+     */
+    public static Warmup fromProperties(Cluster cluster) throws IOException {
+        List<String> targets = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(FILE), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith("#")) {
+                    continue;
+                }
+                if (line.indexOf(':') < 0) {
+                    throw new IllegalArgumentException("invalid target '" + line + "' in " + FILE);
+                }
+                if (cluster == null || cluster.owner(line).equals(cluster.getSelf())) {
+                    targets.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return new Warmup(targets);
+    }
+
+    /**
+     * @param targets the targets to warm up (host:port)
+     */
+    public Warmup(List<String> targets) {
+        this.targets = targets;
+    }
+
+    /**
+     * Warms the targets up, and waits until they are
+     * all done or until the warm-up timeout.
+     *
+     * @return the number of targets warmed up
+     * @throws InterruptedException
+     */
+    public int run() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        last = this;
+
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "wasagent-warmup-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        for (final String target : targets) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    warmup(target);
+                }
+            });
+        }
+        executor.shutdown();
+        boolean complete = executor.awaitTermination(TIMEOUT, TimeUnit.MILLISECONDS);
+        if (! complete) {
+            // Late targets are left to the first checks
+            executor.shutdownNow();
+        }
+
+        duration = System.currentTimeMillis() - start;
+        return done.get() - failed.get();
+    }
+
+    /**
+     * Instantiates the proxy for a target WAS instance.
+     * Benchmarks override it to query fake stats instead.
+     *
+     * @param  params HTTP request params (hostname and port)
+     * @return an applicative proxy for the target WAS instance
+     */
+    protected WASClientProxy createProxy(Map<String,String> params) {
+        return new WASClientProxy(params);
+    }
+
+    /*
+     * Connects to one target and fills its discovery cache.
+     * The proxy is dropped, but its client stays in the
+     * target connection for the first check.
+     */
+    private void warmup(String target) {
+        Map<String,String> params = new HashMap<String,String>();
+        params.put("hostname", target.substring(0, target.lastIndexOf(':')));
+        params.put("port", target.substring(target.lastIndexOf(':') + 1));
+        try {
+            WASClientProxy proxy = createProxy(params);
+            proxy.init();
+            proxy.getServerName();
+            for (String query : QUERIES) {
+                proxy.findMBeans(query);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            failed.incrementAndGet();
+        }
+        done.incrementAndGet();
+    }
+
+}
@@ -0,0 +1,73 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package net.wait4it.nagios.wasagent.tests;
+
+import com.ibm.websphere.pmi.stat.WSDynamicCacheStats;
+
+/**
+ * Gets statistics for dynamic cache instances
+ * (servlet and object caches).
+ * 
+ * The following metrics are available:
+ * 
+ *   - The hit ratio (memory and disk hits), in percent
+ *   - The in-memory entry count
+ *   - The maximum in-memory entry count
+ *   - The LRU eviction rate (per second)
+ * 
+ * The hit ratio and the eviction rate are computed
+ * over the last polling interval. The query parameters
+ * accept two thresholds pairs:
+ * 
+ *   name,warning,critical[,warning,critical]
+ * 
+ * The first pair is a floor for the hit ratio, and the
+ * optional second pair applies to the in-memory entry
+ * count, as a percentage of the maximum.
+ */
+public class DynaCacheTest extends PMITest {
+
+    // Cache instance
+    private static final PMIModule MODULE = new PMIModule(WSDynamicCacheStats.NAME, 1, "cache-", "Dynamic Caching");
+
+    // PMI stats
+    private static final Expression HITS = Expression.sum(Expression.count(WSDynamicCacheStats.HitsInMemoryCount),
+            Expression.count(WSDynamicCacheStats.HitsOnDiskCount));
+    private static final Expression MISSES = Expression.count(WSDynamicCacheStats.MissCount);
+    private static final Expression ENTRIES = Expression.count(WSDynamicCacheStats.InMemoryCacheEntryCount);
+    private static final Expression MAX_ENTRIES = Expression.count(WSDynamicCacheStats.MaxInMemoryCacheEntryCount);
+
+    static {
+        Metric hitRatio = new Metric("hitRatio", Expression.intervalRatio(HITS, MISSES), null,
+                Metric.Basis.FLOOR, "cache hit ratio: ");
+        hitRatio.setUnit("%");
+        MODULE.add(hitRatio);
+
+        Metric entries = new Metric("entries", ENTRIES, MAX_ENTRIES, Metric.Basis.RATIO, "cache entries: ");
+        entries.setIndex(1);
+        MODULE.add(entries);
+
+        MODULE.add(new Metric("evictionRate", Expression.rate(WSDynamicCacheStats.LruInvalidationCount)));
+    }
+
+    public DynaCacheTest() {
+        super(MODULE);
+    }
+
+}
@@ -0,0 +1,140 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package net.wait4it.nagios.wasagent.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.ObjectName;
+
+import com.ibm.websphere.pmi.stat.WSEJBStats;
+import com.ibm.websphere.pmi.stat.WSStats;
+
+import net.wait4it.nagios.wasagent.core.FlatStats;
+import net.wait4it.nagios.wasagent.core.WASClientProxy;
+
+/**
+ * Gets statistics for enterprise beans.
+ * 
+ * The following metrics are available:
+ * 
+ *   - The bean methods mean response time (ms)
+ *   - The bean method call rate (per second)
+ *   - The bean pool ready and live counts
+ * 
+ * With the 'methods' flag, the response time and call
+ * rate are reported for each method of the selected beans
+ * instead (this requires method level PMI counters).
+ * 
+ * Response times and rates are computed over the last
+ * polling interval. Only the selected beans are fetched,
+ * so that servers with thousands of bean methods do not
+ * return the whole recursive EJB stats tree. Beans are
+ * selected by name, and reported as
+ * 'application#module#bean', since beans of different
+ * modules may share a name.
+ */
+public class EJBTest extends PMITest {
+
+    /** Enterprise bean MBean types, also discovered by {@link net.wait4it.nagios.wasagent.core.Warmup} */
+    public static final String[] TYPES = {
+        "StatelessSessionBean", "StatefulSessionBean", "SingletonSessionBean", "EntityBean", "MessageDrivenBean"
+    };
+
+    // EJB module > bean
+    private static final PMIModule BEAN = new PMIModule(WSEJBStats.NAME, 2, "ejb-", "Enterprise Beans");
+
+    // EJB module > bean > methods > method
+    private static final PMIModule METHOD = new PMIModule(WSEJBStats.NAME, 4, "ejb-", "Enterprise Beans");
+
+    static {
+        // Bean names are only unique within their module
+        BEAN.setQualified(true);
+        METHOD.setQualified(true);
+
+        BEAN.add(new Metric("responseTime", Expression.intervalMean(WSEJBStats.MethodResponseTime), null,
+                Metric.Basis.VALUE, "EJB response time: "));
+        BEAN.add(new Metric("callRate", Expression.rate(WSEJBStats.MethodCallCount)));
+
+        // Pool counters are not available for every bean type
+        Metric ready = new Metric("readyCount", Expression.current(WSEJBStats.ReadyCount));
+        ready.setOptional(true);
+        BEAN.add(ready);
+        Metric live = new Metric("liveCount", Expression.current(WSEJBStats.LiveCount));
+        live.setOptional(true);
+        BEAN.add(live);
+
+        // Methods are selected by bean name
+        METHOD.setSelectLevel(2);
+        METHOD.add(new Metric("responseTime", Expression.intervalMean(WSEJBStats.MethodLevelStats.MethodRt), null,
+                Metric.Basis.VALUE, "EJB method response time: "));
+        METHOD.add(new Metric("callRate", Expression.rate(WSEJBStats.MethodLevelStats.MethodCalls)));
+    }
+
+    private final boolean methods;
+
+    /**
+     * @param methods true for method level statistics
+     */
+    public EJBTest(boolean methods) {
+        super(methods ? METHOD : BEAN);
+        this.methods = methods;
+    }
+
+    /**
+     * Fetches the selected beans only. Bean locations come
+     * from the EJB MBeans, whose PMI path is:
+     * 
+     *   beanModule > application#ejb_module > bean
+     * 
+     * and the snapshot keeps this shape, so that beans of
+     * different modules do not share their node.
+     * 
+     * @param  proxy    an applicative proxy for the target WAS instance
+     * @param  selector the compiled query parameters
+     * @return a PMI stats snapshot of the selected beans
+     * @throws Exception
+     */
+    @Override
+    protected FlatStats getStats(WASClientProxy proxy, Selector selector) throws Exception {
+        List<String[]> paths = new ArrayList<String[]>();
+        for (String type : TYPES) {
+            for (ObjectName mbean : proxy.findMBeans("WebSphere:*,type=" + type)) {
+                String name = mbean.getKeyProperty("name");
+                if (name != null && selector.select(name) != null) {
+                    String module = mbean.getKeyProperty("Application") + "#" + mbean.getKeyProperty("EJBModule");
+                    paths.add(new String[] {WSEJBStats.NAME, module, name});
+                }
+            }
+        }
+
+        // Beans without PMI data are skipped
+        WSStats[] roots = paths.isEmpty() ? new WSStats[0] : proxy.getStats(paths, methods);
+        List<String[]> found = new ArrayList<String[]>();
+        List<WSStats> stats = new ArrayList<WSStats>();
+        for (int i = 0; roots != null && i < roots.length; i++) {
+            if (roots[i] != null) {
+                found.add(paths.get(i));
+                stats.add(roots[i]);
+            }
+        }
+        return FlatStats.of(found, stats.toArray(new WSStats[stats.size()]));
+    }
+
+}
@@ -0,0 +1,228 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.wait4it.nagios.wasagent.tests;
+
+import net.wait4it.nagios.wasagent.core.FlatStats;
+import net.wait4it.nagios.wasagent.core.SampleStore;
+
+/**
+ * Extracts a value from a node of a PMI stats
+ * snapshot (see {@link FlatStats}).
+ *
+ * Expressions are built once, when a test
+ * declares its metric table, and evaluated
+ * for every selected node. A missing statistic
+ * raises a NullPointerException, which means
+ * the PMI settings do not match the test.
+ */
+public abstract class Expression {
+
+    /**
+     * Evaluates the expression.
+     *
+     * @param  stats   a PMI stats snapshot
+     * @param  node    a node of the snapshot
+     * @param  samples the previous samples for the target
+     * @param  key     the metric sample key
+     * @return the expression value
+     */
+    public abstract double value(FlatStats stats, int node, SampleStore samples, String key);
+
+    /**
+     * @return true if the value should be
+     *         displayed with decimals
+     */
+    public boolean isDecimal() {
+        return false;
+    }
+
+    /**
+     * @return true if the expression uses the
+     *         previous samples (and thus the key)
+     */
+    public boolean isStateful() {
+        return false;
+    }
+
+    /*
+     * Finds a statistic of a node.
+     */
+    private static int statistic(FlatStats stats, int node, int id) {
+        int statistic = stats.statistic(node, id);
+        if (statistic < 0) {
+            throw new NullPointerException("no statistic " + id + " for '" + stats.getName(node) + "'");
+        }
+        return statistic;
+    }
+
+    /**
+     * A value attached to the node by the test, e.g.
+     * an MBean attribute (see {@link FlatStats#setValue(int, int, long)}).
+     */
+    public static Expression attached(final int key) {
+        return new Expression() {
+            public double value(FlatStats stats, int node, SampleStore samples, String k) {
+                if (! stats.hasValue(node, key)) {
+                    throw new NullPointerException("no value " + key + " for '" + stats.getName(node) + "'");
+                }
+                return stats.getValue(node, key);
+            }
+        };
+    }
+
+    /**
+     * The current value of a range statistic.
+     */
+    public static Expression current(final int id) {
+        return new Expression() {
+            public double value(FlatStats stats, int node, SampleStore samples, String key) {
+                return stats.getCurrent(statistic(stats, node, id));
+            }
+        };
+    }
+
+    /**
+     * The upper bound of a bounded range statistic.
+     */
+    public static Expression upperBound(final int id) {
+        return new Expression() {
+            public double value(FlatStats stats, int node, SampleStore samples, String key) {
+                return stats.getUpperBound(statistic(stats, node, id));
+            }
+        };
+    }
+
+    /**
+     * The value of a count statistic.
+     */
+    public static Expression count(final int id) {
+        return new Expression() {
+            public double value(FlatStats stats, int node, SampleStore samples, String key) {
+                return stats.getCount(statistic(stats, node, id));
+            }
+        };
+    }
+
+    /**
+     * The mean of an average (or time) statistic.
+     */
+    public static Expression mean(final int id) {
+        return new Expression() {
+            public double value(FlatStats stats, int node, SampleStore samples, String key) {
+                return stats.getMean(statistic(stats, node, id));
+            }
+            public boolean isDecimal() {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * The mean of an average (or time) statistic over
+     * the last polling interval.
+     */
+    public static Expression intervalMean(final int id) {
+        return new Expression() {
+            public double value(FlatStats stats, int node, SampleStore samples, String key) {
+                int s = statistic(stats, node, id);
+                return samples.mean(key, stats.getCount(s), stats.getTotal(s), System.currentTimeMillis());
+            }
+            public boolean isDecimal() {
+                return true;
+            }
+            public boolean isStateful() {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * The per second rate of a count statistic over
+     * the last polling interval.
+     */
+    public static Expression rate(final int id) {
+        return new Expression() {
+            public double value(FlatStats stats, int node, SampleStore samples, String key) {
+                return samples.rate(key, stats.getCount(statistic(stats, node, id)), System.currentTimeMillis());
+            }
+            public boolean isDecimal() {
+                return true;
+            }
+            public boolean isStateful() {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * The hit ratio (%) of two counter expressions
+     * over the last polling interval.
+     */
+    public static Expression intervalRatio(final Expression hits, final Expression misses) {
+        return new Expression() {
+            public double value(FlatStats stats, int node, SampleStore samples, String key) {
+                long h = (long) hits.value(stats, node, samples, key);
+                long m = (long) misses.value(stats, node, samples, key);
+                return samples.ratio(key, h, m, System.currentTimeMillis());
+            }
+            public boolean isDecimal() {
+                return true;
+            }
+            public boolean isStateful() {
+                return true;
+            }
+        };
+    }
+
+    /**
+     * The sum of two expressions.
+     */
+    public static Expression sum(final Expression e1, final Expression e2) {
+        return new Expression() {
+            public double value(FlatStats stats, int node, SampleStore samples, String key) {
+                return e1.value(stats, node, samples, key) + e2.value(stats, node, samples, key);
+            }
+            public boolean isDecimal() {
+                return e1.isDecimal() || e2.isDecimal();
+            }
+            public boolean isStateful() {
+                return e1.isStateful() || e2.isStateful();
+            }
+        };
+    }
+
+    /**
+     * The difference between two expressions,
+     * such as pool size minus free pool size.
+     */
+    public static Expression difference(final Expression e1, final Expression e2) {
+        return new Expression() {
+            public double value(FlatStats stats, int node, SampleStore samples, String key) {
+                return e1.value(stats, node, samples, key) - e2.value(stats, node, samples, key);
+            }
+            public boolean isDecimal() {
+                return e1.isDecimal() || e2.isDecimal();
+            }
+            public boolean isStateful() {
+                return e1.isStateful() || e2.isStateful();
+            }
+        };
+    }
+
+}
@@ -0,0 +1,153 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package net.wait4it.nagios.wasagent.tests;
+
+import java.util.Set;
+
+import javax.management.ObjectName;
+
+import com.ibm.websphere.pmi.stat.WSJVMStats;
+
+import net.wait4it.nagios.wasagent.core.FlatStats;
+import net.wait4it.nagios.wasagent.core.Labels;
+import net.wait4it.nagios.wasagent.core.Perfdata;
+import net.wait4it.nagios.wasagent.core.Result;
+import net.wait4it.nagios.wasagent.core.SampleStore;
+import net.wait4it.nagios.wasagent.core.Status;
+import net.wait4it.nagios.wasagent.core.WASClientProxy;
+
+/**
+ * Gets garbage collection statistics for the
+ * target WAS instance JVM.
+ * 
+ * The following metrics are available:
+ * 
+ *   - The number of collections during the last interval
+ *   - The time spent in GC during the last interval (ms)
+ *   - The GC overhead: the share of the last interval
+ *     spent in GC (%)
+ * 
+ * The PMI GC counters are only available when the JVMTI
+ * profiler is enabled. Otherwise the platform GarbageCollector
+ * MXBeans are used, when the target exposes them. Nothing is
+ * reported on the first check, as there is no previous sample.
+ */
+public class GCTest extends TestUtils implements Test {
+
+    /**
+     * WebSphere JVM garbage collection stats.
+     * 
+     * @param  proxy  an applicative proxy for the target WAS instance
+     * @param  params warning and critical thresholds (GC overhead %)
+     * @return result collected data and test status
+     */
+    public Result run(WASClientProxy proxy, String params) {
+        Result result = new Result();
+        int code = 0;
+
+        // Test thresholds
+        long warning, critical;
+
+        // PMI stats
+        FlatStats stats;
+        int gc, gt;
+
+        // Lifetime counters
+        long count = 0, time = 0;
+
+        // Performance data
+        double gcCount, gcTime, gcOverhead;
+
+        // Parses HTTP query params
+        String[] thresholds = params.split(",");
+        warning = Long.parseLong(thresholds[1]);
+        critical = Long.parseLong(thresholds[2]);
+
+        try {
+            stats = FlatStats.of(proxy.getStats(WSJVMStats.NAME));
+            gc = stats.statistic(FlatStats.ROOT, WSJVMStats.GCCount);
+            gt = stats.statistic(FlatStats.ROOT, WSJVMStats.GCTime);
+
+            if (gc >= 0 && gt >= 0) {
+                count = stats.getCount(gc);
+                time = stats.getTotal(gt);
+            } else {
+                // No JVMTI profiling, we try the platform MXBeans
+                Set<ObjectName> collectors = proxy.findMBeans("java.lang:type=GarbageCollector,*");
+                boolean supported = false;
+                for (ObjectName collector : collectors) {
+                    long collections = (Long)proxy.getAttribute(collector, "CollectionCount");
+                    long collectionTime = (Long)proxy.getAttribute(collector, "CollectionTime");
+                    // -1 if the collector does not support the counter
+                    if (collections < 0 || collectionTime < 0) {
+                        continue;
+                    }
+                    count += collections;
+                    time += collectionTime;
+                    supported = true;
+                }
+                if (!supported) {
+                    throw new RuntimeException("invalid 'JVM Runtime' PMI settings (GC counters require JVMTI profiling).");
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            result.setStatus(Status.UNKNOWN);
+            result.setMessage(e.toString());
+            return result;
+        }
+
+        SampleStore samples = SampleStore.forCheck(proxy.getCheck());
+        long now = System.currentTimeMillis();
+        gcCount = samples.delta("jvm-gcCount", count, now);
+        gcTime = samples.delta("jvm-gcTime", time, now);
+        // Milliseconds of GC per second, as a percentage
+        gcOverhead = samples.rate("jvm-gcOverhead", time, now) / 10D;
+
+        if (Double.isNaN(gcOverhead)) {
+            result.setStatus(Status.OK);
+            return result;
+        }
+
+        // Test output (Nagios performance data)
+        Perfdata out = result.getPerfdata();
+        out.begin();
+        out.metric(Labels.get("jvm-", "gcCount", ""), gcCount, false).append(' ');
+        out.metric(Labels.get("jvm-", "gcTime", ""), gcTime, false).append("ms ");
+        out.metric(Labels.get("jvm-", "gcOverhead", ""), gcOverhead, true).append("%;;;0;100");
+        out.end();
+
+        // Test return code
+        code = checkResult(gcOverhead, critical, warning);
+
+        if (code == Status.WARNING.getCode() || code == Status.CRITICAL.getCode()) {
+            result.setMessage("GC overhead (" + format(gcOverhead, true) + "%)");
+        }
+
+        for (Status status : Status.values()) {
+            if (code == status.getCode()) {
+                result.setStatus(status);
+                break;
+            }
+        }
+
+        return result;
+    }
+
+}
@@ -18,20 +18,7 @@
 
 package net.wait4it.nagios.wasagent.tests;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
-import com.ibm.websphere.pmi.stat.WSBoundedRangeStatistic;
 import com.ibm.websphere.pmi.stat.WSJDBCConnectionPoolStats;
-import com.ibm.websphere.pmi.stat.WSRangeStatistic;
-import com.ibm.websphere.pmi.stat.WSStats;
-
-import net.wait4it.nagios.wasagent.core.Result;
-import net.wait4it.nagios.wasagent.core.Status;
-import net.wait4it.nagios.wasagent.core.WASClientProxy;
 
 /**
  * Gets statistics for JDBC datasources.
@@ -43,116 +30,65 @@ import net.wait4it.nagios.wasagent.core.WASClientProxy;
  *   - The active connection count
  *   - The number of threads waiting for
  *     a connection from the pool
+ *   - The mean time spent waiting for a connection (ms)
+ *   - The mean time a connection is used (ms)
+ *   - The connection timeout rate (per second)
+ * 
+ * Times and rates are computed over the last polling
+ * interval, and are only reported when the matching PMI
+ * counters are enabled. The query parameters accept up
+ * to four thresholds pairs:
+ * 
+ *   name,w1,c1[,w2,c2[,w3,c3[,w4,c4]]]
+ * 
+ * applying respectively to the active count (percentage
+ * of the maximum pool size), the wait time, the use time
+ * and the timeout rate.
  * 
  * @author Yann Lambret
  *
  */
-public class JDBCTest extends TestUtils implements Test {
-
-    /**
-     * WebSphere JDBC datasources stats.
-     * 
-     * @param proxy   an applicative proxy for the target WAS instance
-     * @param params  a pipe separated list of datasource names, or
-     *                a wildcard character (*) for all datasources
-     * @return result collected data and test status
-     */
-    public Result run(WASClientProxy proxy, String params) {
-        Result result = new Result();
-        List<String> output = new ArrayList<String>();
-        List<String> message = new ArrayList<String>();
-        int code = 0;
-
-        // Test thresholds
-        long warning, critical;
-        String thresholds = "";
-        Map<String,String> datasources = new HashMap<String,String>();
-
-        // Test code for a specific datasource
-        int testCode = 0;
-
-        // Message prefix
-        String prefix = "datasource active count: ";
-
-        // PMI stats
-        WSStats stats;
-        WSBoundedRangeStatistic ps;
-        WSBoundedRangeStatistic fps;
-        WSRangeStatistic wtc;
-
-        // Performance data
-        long currentPoolSize, maxPoolSize, freePoolSize, waitingThreadCount, activeThreadCount;
-
-        // Parses HTTP query params
-        for (String s : Arrays.asList(params.split("\\|"))) {
-            datasources.put(s.split(",", 2)[0], s.split(",", 2)[1]);
-        }
-
-        try {
-            stats = proxy.getStats(WSJDBCConnectionPoolStats.NAME);
-        } catch (Exception e) {
-            e.printStackTrace();
-            result.setStatus(Status.UNKNOWN);
-            result.setMessage(e.toString());
-            return result;
-        }
-
-        WSStats[] stats1 = stats.getSubStats(); // JDBC Provider level
-        for (WSStats stat1 : stats1) {
-            WSStats[] stats2 = stat1.getSubStats(); // DataSource level
-            for (WSStats stat2 : stats2) {
-
-                // No statistics for WAS internal datasources
-                if (stat2.getName().matches("jdbc/DefaultEJBTimerDataSource")) {
-                    continue;
-                }
-
-                if (datasources.containsKey("*") || datasources.containsKey(stat2.getName())) {
-                    ps = (WSBoundedRangeStatistic)stat2.getStatistic(WSJDBCConnectionPoolStats.PoolSize);
-                    fps = (WSBoundedRangeStatistic)stat2.getStatistic(WSJDBCConnectionPoolStats.FreePoolSize);
-                    wtc = (WSRangeStatistic)stat2.getStatistic(WSJDBCConnectionPoolStats.WaitingThreadCount);
-                    try {
-                        currentPoolSize = ps.getCurrent();
-                        maxPoolSize = ps.getUpperBound();
-                        freePoolSize = fps.getCurrent();
-                        waitingThreadCount = wtc.getCurrent();
-                        activeThreadCount = currentPoolSize - freePoolSize;
-                    } catch (NullPointerException e) {
-                        throw new RuntimeException("invalid 'JDBC Connection Pools' PMI settings.");
-                    }
-
-                    // Test output (Nagios performance data)
-                    StringBuilder out = new StringBuilder();
-                    out.append("jdbc-" + stat2.getName() + "-size=" + currentPoolSize + ";;;0;" + maxPoolSize + " ");
-                    out.append("jdbc-" + stat2.getName() + "-activeThreadCount=" + activeThreadCount + ";;;0;" + maxPoolSize + " ");
-                    out.append("jdbc-" + stat2.getName() + "-waitingThreadCount=" + waitingThreadCount);
-                    output.add(out.toString());
-
-                    // Test return code
-                    thresholds = datasources.get("*") != null ? datasources.get("*") : datasources.get(stat2.getName());
-                    warning = Long.parseLong(thresholds.split(",")[0]);
-                    critical = Long.parseLong(thresholds.split(",")[1]);
-                    testCode = checkResult(activeThreadCount, maxPoolSize, critical, warning);
-
-                    if (testCode == Status.WARNING.getCode() || testCode == Status.CRITICAL.getCode()) {
-                        message.add("'" + stat2.getName() + "' (" + activeThreadCount + "/" + maxPoolSize + ")");
-                        code = (testCode > code) ? testCode : code;
-                    }
-                }
-            }
-        }
-
-        for (Status status : Status.values()) {
-            if (code == status.getCode()) {
-                result.setStatus(status);
-                break;
-            }
-        }
-
-        result.setOutput(formatOut(output));
-        result.setMessage(formatMsg(prefix, message));
+public class JDBCTest extends PMITest {
+
+    // JDBC provider > datasource
+    private static final PMIModule MODULE = new PMIModule(WSJDBCConnectionPoolStats.NAME, 2, "jdbc-", "JDBC Connection Pools");
+
+    // PMI stats
+    private static final Expression POOL_SIZE = Expression.current(WSJDBCConnectionPoolStats.PoolSize);
+    private static final Expression MAX_POOL_SIZE = Expression.upperBound(WSJDBCConnectionPoolStats.PoolSize);
+    private static final Expression FREE_POOL_SIZE = Expression.current(WSJDBCConnectionPoolStats.FreePoolSize);
+    private static final Expression WAITING_THREAD_COUNT = Expression.current(WSJDBCConnectionPoolStats.WaitingThreadCount);
+    private static final Expression WAIT_TIME = Expression.intervalMean(WSJDBCConnectionPoolStats.WaitTime);
+    private static final Expression USE_TIME = Expression.intervalMean(WSJDBCConnectionPoolStats.UseTime);
+    private static final Expression TIMEOUT_RATE = Expression.rate(WSJDBCConnectionPoolStats.FaultCount);
+
+    static {
+        // No statistics for WAS internal datasources
+        MODULE.setInternal("!jdbc/DefaultEJBTimerDataSource");
+
+        MODULE.add(new Metric("size", POOL_SIZE, MAX_POOL_SIZE));
+        MODULE.add(new Metric("activeThreadCount", Expression.difference(POOL_SIZE, FREE_POOL_SIZE), MAX_POOL_SIZE,
+                Metric.Basis.RATIO, "datasource active count: "));
+        MODULE.add(new Metric("waitingThreadCount", WAITING_THREAD_COUNT));
+
+        Metric waitTime = new Metric("waitTime", WAIT_TIME, null, Metric.Basis.VALUE, "datasource wait time: ");
+        waitTime.setIndex(1);
+        waitTime.setOptional(true);
+        MODULE.add(waitTime);
+
+        Metric useTime = new Metric("useTime", USE_TIME, null, Metric.Basis.VALUE, "datasource use time: ");
+        useTime.setIndex(2);
+        useTime.setOptional(true);
+        MODULE.add(useTime);
+
+        Metric timeoutRate = new Metric("timeoutRate", TIMEOUT_RATE, null, Metric.Basis.VALUE, "datasource timeout rate: ");
+        timeoutRate.setIndex(3);
+        timeoutRate.setOptional(true);
+        MODULE.add(timeoutRate);
+    }
 
-        return result;
+    public JDBCTest() {
+        super(MODULE);
     }
 
 }
@@ -18,19 +18,11 @@
 
 package net.wait4it.nagios.wasagent.tests;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import javax.management.ObjectName;
 
-import com.ibm.websphere.pmi.stat.WSBoundedRangeStatistic;
 import com.ibm.websphere.pmi.stat.WSJCAConnectionPoolStats;
-import com.ibm.websphere.pmi.stat.WSRangeStatistic;
-import com.ibm.websphere.pmi.stat.WSStats;
 
 import net.wait4it.nagios.wasagent.core.Result;
 import net.wait4it.nagios.wasagent.core.Status;
@@ -50,56 +42,53 @@ import net.wait4it.nagios.wasagent.core.WASClientProxy;
  * @author Yann Lambret
  *
  */
-public class JMSTest extends TestUtils implements Test {
+public class JMSTest extends PMITest {
+
+    // JMS provider > JCA factory
+    private static final PMIModule MODULE = new PMIModule(WSJCAConnectionPoolStats.NAME, 2, "jms-", "JCA Connection Pools");
+
+    // PMI stats
+    private static final Expression POOL_SIZE = Expression.current(WSJCAConnectionPoolStats.PoolSize);
+    private static final Expression MAX_POOL_SIZE = Expression.upperBound(WSJCAConnectionPoolStats.PoolSize);
+    private static final Expression FREE_POOL_SIZE = Expression.current(WSJCAConnectionPoolStats.FreePoolSize);
+    private static final Expression WAITING_THREAD_COUNT = Expression.current(WSJCAConnectionPoolStats.WaitingThreadCount);
+
+    static {
+        MODULE.setParents("SIB JMS Resource Adapter", "WebSphere MQ JMS Provider");
+
+        MODULE.add(new Metric("size", POOL_SIZE, MAX_POOL_SIZE));
+        MODULE.add(new Metric("activeThreadCount", Expression.difference(POOL_SIZE, FREE_POOL_SIZE), MAX_POOL_SIZE,
+                Metric.Basis.RATIO, "factory active count: "));
+        MODULE.add(new Metric("waitingThreadCount", WAITING_THREAD_COUNT));
+    }
+
+    public JMSTest() {
+        super(MODULE);
+    }
 
     /**
-     * WebSphere JMS connection factories stats.
+     * WebSphere JMS connection factories stats,
+     * and JMS 1.0 listeners status.
      * 
      * @param proxy   an applicative proxy for the target WAS instance
      * @param params  a pipe separated list of factory names, or
      *                a wildcard character (*) for all factories
      * @return result collected data and test status
      */
+    @Override
     public Result run(WASClientProxy proxy, String params) {
-        Result result = new Result();
-        List<String> output = new ArrayList<String>();
-        List<String> message = new ArrayList<String>();
-        int code = 0;
-
-        // Test thresholds
-        long warning, critical;
-        String thresholds = "";
-        Map<String,String> factories = new HashMap<String,String>();
-
-        // Test code for a specific factory
-        int testCode = 0;
+        Result result = super.run(proxy, params);
 
         // JMS 1.0 listeners status
         int stopped = 0;
 
-        // Message prefix
-        String prefix = "factory active count: ";
-
-        // PMI stats
-        WSStats stats;
-        WSBoundedRangeStatistic ps;
-        WSBoundedRangeStatistic fps;
-        WSRangeStatistic wtc;
-
-        // Performance data
-        long currentPoolSize, maxPoolSize, freePoolSize, waitingThreadCount, activeThreadCount;
-
-        // Parses HTTP query params
-        for (String s : Arrays.asList(params.split("\\|"))) {
-            factories.put(s.split(",", 2)[0], s.split(",", 2)[1]);
+        if (result.getStatus() == Status.UNKNOWN) {
+            return result;
         }
 
         try {
-            stats = proxy.getStats(WSJCAConnectionPoolStats.NAME);
-
-            // JMS 1.0 listeners status
             Set<ObjectName> listeners = proxy.getMBeans("WebSphere:*,type=ListenerPort");
-            for (ObjectName listener : listeners) {             
+            for (ObjectName listener : listeners) {
                 if (! (Boolean)proxy.getAttribute(listener, "started")) {
                     stopped += 1;
                 }
@@ -108,74 +97,23 @@ public class JMSTest extends TestUtils implements Test {
             e.printStackTrace();
             result.setStatus(Status.UNKNOWN);
             result.setMessage(e.toString());
+            result.setOutput("");
             return result;
         }
 
-        WSStats[] stats1 = stats.getSubStats(); // JMS provider level
-        for (WSStats stat1 : stats1) {
-
-            if (stat1.getName().equals("SIB JMS Resource Adapter") || stat1.getName().equals("WebSphere MQ JMS Provider")) {
-                WSStats[] stats2 = stat1.getSubStats(); // JCA factory level                    
-                for (WSStats stat2 : stats2) {
-
-                    if (factories.containsKey("*") || factories.containsKey(stat2.getName())) {
-                        ps = (WSBoundedRangeStatistic)stat2.getStatistic(WSJCAConnectionPoolStats.PoolSize);
-                        fps = (WSBoundedRangeStatistic)stat2.getStatistic(WSJCAConnectionPoolStats.FreePoolSize);
-                        wtc = (WSRangeStatistic)stat2.getStatistic(WSJCAConnectionPoolStats.WaitingThreadCount);
-                        try {
-                            currentPoolSize = ps.getCurrent();
-                            maxPoolSize = ps.getUpperBound();
-                            freePoolSize = fps.getCurrent();
-                            waitingThreadCount = wtc.getCurrent();
-                            activeThreadCount = currentPoolSize - freePoolSize;
-                        } catch (NullPointerException e) {
-                            throw new RuntimeException("invalid 'JCA Connection Pools' PMI settings.");
-                        }
-
-                        // Test output (Nagios performance data)
-                        StringBuilder out = new StringBuilder();
-                        out.append("jms-" + stat2.getName() + "-size=" + currentPoolSize + ";;;0;" + maxPoolSize + " ");
-                        out.append("jms-" + stat2.getName() + "-activeThreadCount=" + activeThreadCount + ";;;0;" + maxPoolSize + " ");
-                        out.append("jms-" + stat2.getName() + "-waitingThreadCount=" + waitingThreadCount);
-                        output.add(out.toString());
-
-                        // Test return code
-                        thresholds = factories.get("*") != null ? factories.get("*") : factories.get(stat2.getName());
-                        warning = Long.parseLong(thresholds.split(",")[0]);
-                        critical = Long.parseLong(thresholds.split(",")[1]);
-                        testCode = checkResult(activeThreadCount, maxPoolSize, critical, warning);
-
-                        if (testCode == Status.WARNING.getCode() || testCode == Status.CRITICAL.getCode()) {
-                            message.add("'" + stat2.getName() + "' (" + activeThreadCount + "/" + maxPoolSize + ")");
-                            code = (testCode > code) ? testCode : code;
-                        }
-                    }
-                }
+        if (stopped > 0) {
+            if (result.getStatus() == Status.OK) {
+                result.setStatus(Status.WARNING);
             }
-        }
 
-        if (code == Status.OK.getCode() && stopped > 0) {
-            code = Status.WARNING.getCode();
-        }
-
-        // Hack for the message string
-        if (stopped > 0 && message.size() > 0) {
-            prefix = "stopped listeners: " + stopped + " - " + prefix;
-        } else if (stopped > 0) {
-            prefix = "stopped listeners: ";
-            message.add(String.valueOf(stopped));
-        }
-
-        for (Status status : Status.values()) {           
-            if (code == status.getCode()) {
-                result.setStatus(status);
-                break;
+            // Hack for the message string
+            if (result.getMessage().length() > 0) {
+                result.setMessage("stopped listeners: " + stopped + " - " + result.getMessage());
+            } else {
+                result.setMessage("stopped listeners: " + stopped);
             }
         }
 
-        result.setOutput(formatOut(output));
-        result.setMessage(formatMsg(prefix, message));
-
         return result;
     }
 
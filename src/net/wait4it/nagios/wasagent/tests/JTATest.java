@@ -18,10 +18,11 @@
 
 package net.wait4it.nagios.wasagent.tests;
 
-import com.ibm.websphere.pmi.stat.WSCountStatistic;
 import com.ibm.websphere.pmi.stat.WSJTAStats;
-import com.ibm.websphere.pmi.stat.WSStats;
 
+import net.wait4it.nagios.wasagent.core.FlatStats;
+import net.wait4it.nagios.wasagent.core.Labels;
+import net.wait4it.nagios.wasagent.core.Perfdata;
 import net.wait4it.nagios.wasagent.core.Result;
 import net.wait4it.nagios.wasagent.core.Status;
 import net.wait4it.nagios.wasagent.core.WASClientProxy;
@@ -49,8 +50,8 @@ public class JTATest extends TestUtils implements Test {
         long warning, critical;
 
         // PMI stats
-        WSStats stats;
-        WSCountStatistic ac;
+        FlatStats stats;
+        int ac;
 
         // Performance data
         long activeCount;
@@ -61,7 +62,7 @@ public class JTATest extends TestUtils implements Test {
         critical = Long.parseLong(thresholds[2]);
 
         try {
-            stats = proxy.getStats(WSJTAStats.NAME);
+            stats = FlatStats.of(proxy.getStats(WSJTAStats.NAME));
         } catch (Exception e) {
             e.printStackTrace();
             result.setStatus(Status.UNKNOWN);
@@ -69,16 +70,19 @@ public class JTATest extends TestUtils implements Test {
             return result;
         }
 
-        ac = (WSCountStatistic)stats.getStatistic(WSJTAStats.ActiveCount);
+        ac = stats.statistic(FlatStats.ROOT, WSJTAStats.ActiveCount);
 
-        try {
-            activeCount = ac.getCount();
-        } catch (NullPointerException e) {
+        if (ac < 0) {
             throw new RuntimeException("invalid 'Transaction Manager' PMI settings.");
         }
 
+        activeCount = stats.getCount(ac);
+
         // Test output (Nagios performance data)
-        result.setOutput("jta-activeCount=" + activeCount);
+        Perfdata out = result.getPerfdata();
+        out.begin();
+        out.metric(Labels.get("jta-", "activeCount", ""), activeCount, false);
+        out.end();
 
         // Test return code
         code = checkResult(activeCount, critical, warning);
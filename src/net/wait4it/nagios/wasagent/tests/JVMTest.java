@@ -18,11 +18,11 @@
 
 package net.wait4it.nagios.wasagent.tests;
 
-import com.ibm.websphere.pmi.stat.WSBoundedRangeStatistic;
-import com.ibm.websphere.pmi.stat.WSCountStatistic;
 import com.ibm.websphere.pmi.stat.WSJVMStats;
-import com.ibm.websphere.pmi.stat.WSStats;
 
+import net.wait4it.nagios.wasagent.core.FlatStats;
+import net.wait4it.nagios.wasagent.core.Labels;
+import net.wait4it.nagios.wasagent.core.Perfdata;
 import net.wait4it.nagios.wasagent.core.Result;
 import net.wait4it.nagios.wasagent.core.Status;
 import net.wait4it.nagios.wasagent.core.WASClientProxy;
@@ -58,10 +58,8 @@ public class JVMTest extends TestUtils implements Test {
         long warning, critical;
 
         // PMI stats
-        WSStats stats;
-        WSBoundedRangeStatistic hs;
-        WSCountStatistic um;
-        WSCountStatistic cu;
+        FlatStats stats;
+        int hs, um, cu;
 
         // Performance data
         long maxMemory, heapSize, heapUsed, cpu;
@@ -72,7 +70,7 @@ public class JVMTest extends TestUtils implements Test {
         critical = Long.parseLong(paramsArray[2]);
 
         try {
-            stats = proxy.getStats(WSJVMStats.NAME);
+            stats = FlatStats.of(proxy.getStats(WSJVMStats.NAME));
         } catch (Exception e) {
             e.printStackTrace();
             result.setStatus(Status.UNKNOWN);
@@ -80,26 +78,27 @@ public class JVMTest extends TestUtils implements Test {
             return result;
         }
 
-        hs = (WSBoundedRangeStatistic)stats.getStatistic(WSJVMStats.HeapSize);
-        um = (WSCountStatistic)stats.getStatistic(WSJVMStats.UsedMemory);
-        cu = (WSCountStatistic)stats.getStatistic(WSJVMStats.cpuUsage);
+        hs = stats.statistic(FlatStats.ROOT, WSJVMStats.HeapSize);
+        um = stats.statistic(FlatStats.ROOT, WSJVMStats.UsedMemory);
+        cu = stats.statistic(FlatStats.ROOT, WSJVMStats.cpuUsage);
 
-        try {
-            // Memory values are expressed as Megabytes
-            maxMemory = hs.getUpperBound() / 1024L;
-            heapSize = hs.getCurrent() / 1024L;
-            heapUsed = um.getCount() / 1024L;
-            cpu = cu.getCount();
-        } catch (NullPointerException e) {
+        if (hs < 0 || um < 0 || cu < 0) {
             throw new RuntimeException("invalid 'JVM Runtime' PMI settings.");
         }
 
+        // Memory values are expressed as Megabytes
+        maxMemory = stats.getUpperBound(hs) / 1024L;
+        heapSize = stats.getCurrent(hs) / 1024L;
+        heapUsed = stats.getCount(um) / 1024L;
+        cpu = stats.getCount(cu);
+
         // Test output (Nagios performance data)
-        StringBuilder out = new StringBuilder();
-        out.append("jvm-heapSize=" + heapSize + "MB;;;0;" + maxMemory + " ");
-        out.append("jvm-heapUsed=" + heapUsed + "MB;;;0;" + maxMemory + " ");
-        out.append("jvm-cpu=" + cpu + "%;;;0;100");
-        result.setOutput(out.toString());
+        Perfdata out = result.getPerfdata();
+        out.begin();
+        out.metric(Labels.get("jvm-", "heapSize", ""), heapSize, false).append("MB;;;0;").append(maxMemory).append(' ');
+        out.metric(Labels.get("jvm-", "heapUsed", ""), heapUsed, false).append("MB;;;0;").append(maxMemory).append(' ');
+        out.metric(Labels.get("jvm-", "cpu", ""), cpu, false).append("%;;;0;100");
+        out.end();
 
         // Test return code
         code = checkResult(heapUsed, maxMemory, critical, warning);
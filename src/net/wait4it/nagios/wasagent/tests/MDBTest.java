@@ -0,0 +1,227 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.wait4it.nagios.wasagent.tests;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.AttributeNotFoundException;
+import javax.management.ObjectName;
+
+import com.ibm.websphere.pmi.stat.WSEJBStats;
+
+import net.wait4it.nagios.wasagent.core.Discovery;
+import net.wait4it.nagios.wasagent.core.FlatStats;
+import net.wait4it.nagios.wasagent.core.WASClientProxy;
+
+/**
+ * Gets statistics for message driven beans, bound to
+ * JCA activation specifications.
+ *
+ * The following metrics are available, for each bean:
+ *
+ *   - The message endpoint status (1 active, 2 paused,
+ *     3 stopped)
+ *   - The concurrent onMessage calls, against the maximum
+ *     concurrency of the activation specification
+ *   - The message delivery rate (per second)
+ *   - The onMessage mean response time (ms)
+ *
+ * The endpoint status and the activation specification
+ * come from the J2CMessageEndpoint MBean of the bean, and
+ * the maximum concurrency from the J2CActivationSpec MBean
+ * ('maxConcurrency' for the SIB resource adapter and
+ * 'maxPoolDepth' for the WebSphere MQ one). The maximum
+ * concurrency is static, and kept in the discovery cache.
+ * The concurrent calls are only reported for the beans
+ * whose specification has a maximum concurrency.
+ * The rate and the response time are computed over the
+ * last polling interval, from the EJB PMI counters, and
+ * are not reported for beans which have no PMI data yet.
+ * Beans are selected by name, and reported as
+ * 'application#module#bean', since beans of different
+ * modules may share a name.
+ *
+ * A bean whose endpoint is not active is a warning, like
+ * a stopped JMS 1.0 listener (see {@link JMSTest}).
+ * Thresholds are given as 'saturation[,rate[,time]]'
+ * pairs, e.g. '*,80,95,1,0,500,1000': the concurrent calls
+ * as a percentage of the maximum, the delivery rate, which
+ * alerts when it drops, and the onMessage response time.
+ */
+public class MDBTest extends PMITest {
+
+    /** Activation specification MBean types, also discovered by {@link net.wait4it.nagios.wasagent.core.Warmup} */
+    public static final String[] TYPES = {"J2CActivationSpec", "J2CMessageEndpoint"};
+
+    // Threshold pairs
+    private static final int SATURATION = 0;
+    private static final int RATE = 1;
+    private static final int TIME = 2;
+
+    // Values attached to the bean nodes
+    private static final int STATUS = 0;
+    private static final int LIMIT = 1;
+
+    // Maximum concurrency attributes, by resource adapter
+    private static final String[] LIMITS = {"maxConcurrency", "maxPoolDepth"};
+
+    // EJB module > bean
+    private static final PMIModule BEAN = new PMIModule(WSEJBStats.NAME, 2, "mdb-", "Enterprise Beans");
+
+    static {
+        BEAN.setQualified(true);
+
+        // Paused (2) and stopped (3) endpoints are warnings
+        Metric status = new Metric("status", Expression.attached(STATUS), null, Metric.Basis.VALUE, "MDB endpoint: ");
+        status.setThresholds(new Thresholds(2L, Long.MAX_VALUE));
+        status.setOptional(true);
+        BEAN.add(status);
+
+        // Not part of the basic statistic set
+        Metric concurrent = new Metric("concurrent", Expression.current(WSEJBStats.ActiveMethodCount),
+                Expression.attached(LIMIT), Metric.Basis.RATIO, "MDB concurrency: ");
+        concurrent.setIndex(SATURATION);
+        concurrent.setOptional(true);
+        BEAN.add(concurrent);
+
+        // Beans which were never used have no PMI data yet
+        Metric rate = new Metric("rate", Expression.rate(WSEJBStats.MessageCount), null,
+                Metric.Basis.FLOOR, "MDB delivery rate: ");
+        rate.setIndex(RATE);
+        rate.setOptional(true);
+        BEAN.add(rate);
+        Metric time = new Metric("time", Expression.intervalMean(WSEJBStats.MethodResponseTime), null,
+                Metric.Basis.VALUE, "MDB response time: ");
+        time.setIndex(TIME);
+        time.setOptional(true);
+        BEAN.add(time);
+    }
+
+    public MDBTest() {
+        super(BEAN);
+    }
+
+    /**
+     * Fetches the selected beans only, whose PMI path is:
+     *
+     *   beanModule > application#ejb_module > bean
+     *
+     * and attaches the endpoint status and the maximum
+     * concurrency to each bean node.
+     *
+     * @param  proxy    an applicative proxy for the target WAS instance
+     * @param  selector the compiled query parameters
+     * @return a PMI stats snapshot of the selected beans
+     * @throws Exception
+     */
+    @Override
+    protected FlatStats getStats(WASClientProxy proxy, Selector selector) throws Exception {
+        Map<String,Long> limits = getLimits(proxy);
+
+        // Message endpoints, by bean (application#module#bean)
+        Map<String,ObjectName> endpoints = new HashMap<String,ObjectName>();
+        for (ObjectName endpoint : proxy.findMBeans("WebSphere:*,type=J2CMessageEndpoint")) {
+            String bean = endpoint.getKeyProperty("MessageDrivenBean");
+            if (bean != null) {
+                endpoints.put(bean, endpoint);
+            }
+        }
+
+        List<String[]> paths = new ArrayList<String[]>();
+        for (ObjectName mbean : proxy.findMBeans("WebSphere:*,type=MessageDrivenBean")) {
+            String name = mbean.getKeyProperty("name");
+            if (name != null && selector.select(name) != null) {
+                String module = mbean.getKeyProperty("Application") + "#" + mbean.getKeyProperty("EJBModule");
+                paths.add(new String[] {WSEJBStats.NAME, module, name});
+            }
+        }
+
+        // Beans without PMI data get an empty node
+        FlatStats stats = FlatStats.of(paths, paths.isEmpty() ? null : proxy.getStats(paths, false));
+
+        for (String[] path : paths) {
+            int node = stats.find(path[1], path[2]);
+            ObjectName endpoint = endpoints.get(path[1] + "#" + path[2]);
+            if (endpoint == null) {
+                continue;
+            }
+            Object status = getAttribute(proxy, endpoint, "status");
+            if (status instanceof Number && ((Number)status).intValue() > 0) {
+                stats.setValue(node, STATUS, ((Number)status).longValue());
+            }
+            String spec = endpoint.getKeyProperty("ActivationSpec");
+            Long limit = spec == null ? null : limits.get(spec);
+            if (limit != null && limit.longValue() > 0) {
+                stats.setValue(node, LIMIT, limit.longValue());
+            }
+        }
+
+        return stats;
+    }
+
+    /*
+     * Gets the maximum concurrency of the activation
+     * specifications, by JNDI name. The values are kept
+     * in the discovery cache, as 'jndiName<tab>limit',
+     * or as an empty value when the specification has
+     * no name or no limit.
+     */
+    private static Map<String,Long> getLimits(WASClientProxy proxy) throws Exception {
+        Discovery discovery = Discovery.forTarget(proxy.getTarget());
+        long now = System.currentTimeMillis();
+        Map<String,Long> limits = new HashMap<String,Long>();
+        for (ObjectName spec : proxy.findMBeans("WebSphere:*,type=J2CActivationSpec")) {
+            String key = "maxConcurrency " + spec.getCanonicalName();
+            String value = discovery.getValue(key, now);
+            if (value == null) {
+                value = "";
+                Object jndiName = getAttribute(proxy, spec, "jndiName");
+                for (int i = 0; jndiName != null && i < LIMITS.length && value.length() == 0; i++) {
+                    Object limit = getAttribute(proxy, spec, LIMITS[i]);
+                    if (limit instanceof Number) {
+                        value = jndiName + "\t" + ((Number)limit).longValue();
+                    }
+                }
+                discovery.putValue(key, value, now);
+            }
+            int tab = value.lastIndexOf('\t');
+            if (tab > 0) {
+                limits.put(value.substring(0, tab), Long.valueOf(value.substring(tab + 1)));
+            }
+        }
+        return limits;
+    }
+
+    /*
+     * Gets an MBean attribute, or null if the MBean
+     * does not have it (it depends on the resource
+     * adapter and on the WAS version).
+     */
+    private static Object getAttribute(WASClientProxy proxy, ObjectName mbean, String attribute) throws Exception {
+        try {
+            return proxy.getAttribute(mbean, attribute);
+        } catch (AttributeNotFoundException e) {
+            return null;
+        }
+    }
+
+}
@@ -0,0 +1,177 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.wait4it.nagios.wasagent.tests;
+
+/**
+ * A metric definition: one line of a PMI test table.
+ *
+ * A metric produces one Nagios performance data item
+ * per selected instance, of the form:
+ *
+ *   prefix-instance-name=value[unit][;;;0;bound]
+ *
+ * It can also be compared to thresholds, either as an
+ * absolute value, as a floor value or as a percentage of
+ * its bound. A NaN value (e.g. a rate on the first check)
+ * is not reported.
+ */
+public class Metric {
+
+    /**
+     * What the thresholds are compared to.
+     */
+    public enum Basis {
+        NONE,  // No thresholds
+        VALUE, // The metric value
+        RATIO, // The metric value as a percentage of its bound
+        FLOOR  // The metric value, alerting when it drops below the thresholds
+    }
+
+    private final String name;
+    private final Expression value;
+    private final Expression bound;
+    private final Basis basis;
+    private final String prefix;
+    private String unit = "";
+    private Thresholds thresholds = null;
+    private boolean optional = false;
+    private int index = 0;
+    private double scale = 1;
+
+    /**
+     * A metric without thresholds.
+     *
+     * @param name  the metric name, appended to the instance name
+     * @param value the metric value
+     */
+    public Metric(String name, Expression value) {
+        this(name, value, null, Basis.NONE, null);
+    }
+
+    /**
+     * A bounded metric without thresholds.
+     *
+     * @param name  the metric name, appended to the instance name
+     * @param value the metric value
+     * @param bound the metric maximum value
+     */
+    public Metric(String name, Expression value, Expression bound) {
+        this(name, value, bound, Basis.NONE, null);
+    }
+
+    /**
+     * A metric with thresholds.
+     *
+     * @param name   the metric name, appended to the instance name
+     * @param value  the metric value
+     * @param bound  the metric maximum value, may be null
+     *               unless the basis is RATIO
+     * @param basis  what the thresholds are compared to
+     * @param prefix the alert message prefix
+     */
+    public Metric(String name, Expression value, Expression bound, Basis basis, String prefix) {
+        this.name = name;
+        this.value = value;
+        this.bound = bound;
+        this.basis = basis;
+        this.prefix = prefix;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Expression getValue() {
+        return value;
+    }
+
+    public Expression getBound() {
+        return bound;
+    }
+
+    public Basis getBasis() {
+        return basis;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public String getUnit() {
+        return unit;
+    }
+
+    /**
+     * @param unit the performance data unit (MB, %, ms...)
+     */
+    public void setUnit(String unit) {
+        this.unit = unit;
+    }
+
+    public Thresholds getThresholds() {
+        return thresholds;
+    }
+
+    /**
+     * @param thresholds fixed thresholds, used instead
+     *                   of the query parameters ones
+     */
+    public void setThresholds(Thresholds thresholds) {
+        this.thresholds = thresholds;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    /**
+     * @param index the thresholds pair used by this metric, when
+     *              a test accepts several pairs per instance; the
+     *              metric is not checked if the pair is missing
+     */
+    public void setIndex(int index) {
+        this.index = index;
+    }
+
+    public double getScale() {
+        return scale;
+    }
+
+    /**
+     * @param scale the factor applied to the value before it
+     *              is compared to fixed thresholds, e.g. 60 for
+     *              per minute thresholds on a per second rate
+     */
+    public void setScale(double scale) {
+        this.scale = scale;
+    }
+
+    public boolean isOptional() {
+        return optional;
+    }
+
+    /**
+     * @param optional true if the metric is silently skipped
+     *                 when the statistic is not available
+     */
+    public void setOptional(boolean optional) {
+        this.optional = optional;
+    }
+
+}
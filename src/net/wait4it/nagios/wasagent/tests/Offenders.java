@@ -0,0 +1,170 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.wait4it.nagios.wasagent.tests;
+
+import java.util.List;
+import java.util.Map;
+
+import net.wait4it.nagios.wasagent.core.Perfdata;
+import net.wait4it.nagios.wasagent.core.Status;
+
+/**
+ * Keeps the N worst instances of a test, when the
+ * 'top' query parameter is set.
+ *
+ * Instances are ranked by test code first, and then by
+ * their highest threshold ratio (how close the worst
+ * metric is to its critical threshold). The retained
+ * instances live in a bounded min-heap, so the worst
+ * one left out is found in constant time and the walk
+ * never keeps more than N instances: the performance
+ * data of the others is removed from the test output
+ * as soon as they are ranked out.
+ */
+final class Offenders {
+
+    private final Perfdata output;
+    private final int capacity;
+
+    // Min-heap of the retained instances
+    private final int[] codes;
+    private final double[] scores;
+    private final int[] items;
+    private final String[][] messages;
+    private int size = 0;
+
+    // Instances left out, by test code
+    private final int[] dropped = new int[3];
+
+    /**
+     * @param output   the test output
+     * @param capacity the number of instances to report
+     */
+    Offenders(Perfdata output, int capacity) {
+        this.output = output;
+        this.capacity = capacity;
+        this.codes = new int[capacity];
+        this.scores = new double[capacity];
+        this.items = new int[capacity];
+        this.messages = new String[capacity][];
+    }
+
+    /**
+     * Ranks an instance.
+     *
+     * @param code     the instance test code
+     * @param score    the instance highest threshold ratio
+     * @param item     the instance performance data item
+     * @param messages the instance alert messages, as
+     *                 (prefix, message) pairs
+     */
+    void offer(int code, double score, int item, String[] messages) {
+        if (size < capacity) {
+            set(size, code, score, item, messages);
+            up(size++);
+            return;
+        }
+        if (capacity == 0 || ! worse(code, score, codes[0], scores[0])) {
+            drop(code, item);
+            return;
+        }
+        drop(codes[0], items[0]);
+        set(0, code, score, item, messages);
+        down(0);
+    }
+
+    /**
+     * Adds the alert messages of the retained instances.
+     *
+     * @param out the alert messages, by prefix
+     */
+    void report(Map<String,List<String>> out) {
+        for (int i = 0; i < size; i++) {
+            for (int j = 0; j < messages[i].length; j += 2) {
+                out.get(messages[i][j]).add(messages[i][j + 1]);
+            }
+        }
+    }
+
+    /**
+     * @return a summary of the alerting instances left
+     *         out, or an empty string if there is none
+     */
+    String summary() {
+        int warning = dropped[Status.WARNING.getCode()];
+        int critical = dropped[Status.CRITICAL.getCode()];
+        if (warning + critical == 0) {
+            return "";
+        }
+        return (warning + critical) + " more instances (" + critical + " critical, " + warning + " warning)";
+    }
+
+    private void drop(int code, int item) {
+        output.remove(item);
+        dropped[Math.min(code, dropped.length - 1)]++;
+    }
+
+    private void set(int i, int code, double score, int item, String[] messages) {
+        codes[i] = code;
+        scores[i] = score;
+        items[i] = item;
+        this.messages[i] = messages;
+    }
+
+    private static boolean worse(int c1, double s1, int c2, double s2) {
+        return c1 != c2 ? c1 > c2 : s1 > s2;
+    }
+
+    private void up(int i) {
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (! worse(codes[parent], scores[parent], codes[i], scores[i])) {
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void down(int i) {
+        while (true) {
+            int min = i;
+            for (int child = 2 * i + 1; child <= 2 * i + 2 && child < size; child++) {
+                if (worse(codes[min], scores[min], codes[child], scores[child])) {
+                    min = child;
+                }
+            }
+            if (min == i) {
+                return;
+            }
+            swap(i, min);
+            i = min;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int code = codes[i];
+        double score = scores[i];
+        int item = items[i];
+        String[] msgs = messages[i];
+        set(i, codes[j], scores[j], items[j], messages[j]);
+        set(j, code, score, item, msgs);
+    }
+
+}
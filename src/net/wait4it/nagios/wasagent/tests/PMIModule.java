@@ -0,0 +1,157 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.wait4it.nagios.wasagent.tests;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Describes where the instances of a PMI module
+ * live in the stats tree, and which metrics are
+ * collected for each of them.
+ *
+ * For instance, JDBC datasources are found at depth 2
+ * in the 'connectionPoolModule' tree:
+ *
+ *   connectionPoolModule > JDBC provider > datasource
+ */
+public class PMIModule {
+
+    private final String name;
+    private final int depth;
+    private final String prefix;
+    private final String settings;
+    private final List<Metric> metrics = new ArrayList<Metric>();
+    private Set<String> parents = null;
+    private Selector internal = null;
+    private int selectLevel;
+    private boolean qualified = false;
+
+    /**
+     * @param name     the NAME field of the PMI interface
+     * @param depth    the instance level in the stats tree
+     * @param prefix   the performance data label prefix
+     * @param settings the PMI module display name, used
+     *                 when PMI settings are wrong
+     */
+    public PMIModule(String name, int depth, String prefix, String settings) {
+        this.name = name;
+        this.depth = depth;
+        this.prefix = prefix;
+        this.settings = settings;
+        this.selectLevel = depth;
+    }
+
+    /**
+     * Adds a metric to the module table.
+     *
+     * @param metric the metric definition
+     */
+    public void add(Metric metric) {
+        metrics.add(metric);
+    }
+
+    /**
+     * Restricts the walk to some of the instance parents.
+     *
+     * @param names the accepted parent node names
+     */
+    public void setParents(String... names) {
+        parents = new HashSet<String>(Arrays.asList(names));
+    }
+
+    /**
+     * Excludes WAS internal components.
+     *
+     * @param excludes a selector made of exclusion entries
+     */
+    public void setInternal(String excludes) {
+        internal = Selector.compile(excludes);
+    }
+
+    /**
+     * Applies the query parameters to the ancestors of the
+     * instances, e.g. EJB methods are selected by bean name.
+     *
+     * @param level the level the selector applies to
+     */
+    public void setSelectLevel(int level) {
+        selectLevel = level;
+    }
+
+    public int getSelectLevel() {
+        return selectLevel;
+    }
+
+    /**
+     * Names the selected instances after their parent
+     * too, when names are only unique within it, e.g.
+     * 'application#module#bean' for enterprise beans.
+     * The instances are still selected by their own name.
+     *
+     * @param qualified true for qualified instance names
+     */
+    public void setQualified(boolean qualified) {
+        this.qualified = qualified;
+    }
+
+    public boolean isQualified() {
+        return qualified;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public String getPrefix() {
+        return prefix;
+    }
+
+    public String getSettings() {
+        return settings;
+    }
+
+    public List<Metric> getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @param  name a parent node name
+     * @return true if the instances below this node are collected
+     */
+    public boolean isParent(String name) {
+        return parents == null || parents.contains(name);
+    }
+
+    /**
+     * @param  name an instance name
+     * @return true if the instance is a WAS internal component
+     */
+    public boolean isInternal(String name) {
+        return internal != null && internal.excludes(name);
+    }
+
+}
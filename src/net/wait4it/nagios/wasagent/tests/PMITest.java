@@ -0,0 +1,368 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.wait4it.nagios.wasagent.tests;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.ibm.websphere.pmi.stat.WSStats;
+
+import net.wait4it.nagios.wasagent.core.Baseline;
+import net.wait4it.nagios.wasagent.core.FlatStats;
+import net.wait4it.nagios.wasagent.core.Labels;
+import net.wait4it.nagios.wasagent.core.Perfdata;
+import net.wait4it.nagios.wasagent.core.Result;
+import net.wait4it.nagios.wasagent.core.SampleStore;
+import net.wait4it.nagios.wasagent.core.Status;
+import net.wait4it.nagios.wasagent.core.WASClientProxy;
+
+/**
+ * Generic test for PMI modules with several instances
+ * (datasources, thread pools, servlets...).
+ *
+ * The stats tree is copied into a compact snapshot
+ * (see {@link FlatStats}), which is walked once down to the instance
+ * level described by the module, and every metric of
+ * the module table is evaluated for each selected
+ * instance. When the 'top' query parameter is set, only
+ * the worst instances are reported (see {@link Offenders}).
+ */
+public abstract class PMITest extends TestUtils implements Test {
+
+    private final PMIModule[] modules;
+    private final Metric[][] metrics;
+
+    /**
+     * @param modules the PMI module descriptions, which must all
+     *                share the same PMI interface (e.g. web modules
+     *                and servlets); the stats tree is fetched once
+     */
+    protected PMITest(PMIModule... modules) {
+        this.modules = modules;
+        this.metrics = new Metric[modules.length][];
+        for (int i = 0; i < modules.length; i++) {
+            this.metrics[i] = modules[i].getMetrics().toArray(new Metric[0]);
+        }
+    }
+
+    /**
+     * WebSphere PMI module stats.
+     *
+     * @param proxy   an applicative proxy for the target WAS instance
+     * @param params  a pipe separated list of instance names or patterns
+     *                with their thresholds (see {@link Selector})
+     * @return result collected data and test status
+     */
+    public Result run(WASClientProxy proxy, String params) {
+        Result result = new Result();
+        Walk walk = new Walk();
+        int code = 0;
+
+        walk.output = result.getPerfdata();
+
+        // Alert messages are grouped by prefix
+        for (Metric[] table : metrics) {
+            for (Metric metric : table) {
+                if (metric.getPrefix() != null && ! walk.messages.containsKey(metric.getPrefix())) {
+                    walk.messages.put(metric.getPrefix(), new ArrayList<String>());
+                }
+            }
+        }
+
+        // PMI stats
+        FlatStats stats;
+
+        // Parses HTTP query params
+        walk.selector = Selector.compile(params);
+
+        // Previous samples, for interval metrics
+        walk.samples = SampleStore.forCheck(proxy.getCheck());
+
+        // Learned values, for baseline thresholds
+        walk.baseline = Baseline.forTarget(proxy.getTarget());
+
+        // Worst instances, if required
+        if (proxy.getTop() > 0) {
+            walk.offenders = new Offenders(walk.output, proxy.getTop());
+        }
+
+        try {
+            stats = getStats(proxy, walk.selector);
+        } catch (Exception e) {
+            e.printStackTrace();
+            result.setStatus(Status.UNKNOWN);
+            result.setMessage(e.toString());
+            return result;
+        }
+
+        // No stats at all when the module is not monitored
+        if (stats == null) {
+            result.setStatus(Status.UNKNOWN);
+            result.setMessage("invalid '" + modules[0].getSettings() + "' PMI settings.");
+            return result;
+        }
+
+        for (int i = 0; i < modules.length; i++) {
+            try {
+                code = Math.max(code, walk(stats, FlatStats.ROOT, getLevel(), null, null, modules[i], metrics[i], walk));
+            } catch (NullPointerException e) {
+                throw new RuntimeException("invalid '" + modules[i].getSettings() + "' PMI settings.");
+            }
+        }
+
+        for (Status status : Status.values()) {
+            if (code == status.getCode()) {
+                result.setStatus(status);
+                break;
+            }
+        }
+
+        String summary = "";
+        if (walk.offenders != null) {
+            walk.offenders.report(walk.messages);
+            summary = walk.offenders.summary();
+        }
+
+        StringBuilder message = new StringBuilder();
+        for (Map.Entry<String,List<String>> entry : walk.messages.entrySet()) {
+            String msg = formatMsg(entry.getKey(), entry.getValue());
+            if (msg.length() > 0) {
+                if (message.length() > 0) {
+                    message.append(" - ");
+                }
+                message.append(msg);
+            }
+        }
+
+        if (summary.length() > 0) {
+            message.append(message.length() > 0 ? " - " : "").append(summary);
+        }
+
+        walk.output.sort();
+        result.setMessage(message.toString());
+        result.setProximity(walk.proximity);
+
+        return result;
+    }
+
+    /**
+     * Fetches the PMI stats the walk starts from. By
+     * default, the whole module tree is fetched and the
+     * walk starts from the children of its root (level 1).
+     *
+     * @param  proxy    an applicative proxy for the target WAS instance
+     * @param  selector the compiled query parameters
+     * @return a PMI stats snapshot, whose root children are
+     *         the nodes at level {@link #getLevel()}, or null
+     *         if the target has no stats for the module
+     * @throws Exception
+     */
+    protected FlatStats getStats(WASClientProxy proxy, Selector selector) throws Exception {
+        WSStats root = proxy.getStats(modules[0].getName());
+        return root == null ? null : FlatStats.of(root);
+    }
+
+    /**
+     * @return the level of the nodes returned by
+     *         {@link #getStats(WASClientProxy, Selector)}
+     */
+    protected int getLevel() {
+        return 1;
+    }
+
+    /*
+     * Walks down to the instance level and returns the worst
+     * test code of the subtree. Below the selection level,
+     * instances inherit the thresholds of their selected
+     * ancestor and are named after it.
+     */
+    private int walk(FlatStats stats, int parent, int level, String selected, Thresholds thresholds, PMIModule module, Metric[] table, Walk walk) {
+        int code = 0;
+        for (int i = 0; i < stats.getChildCount(parent); i++) {
+            int node = stats.getChild(parent, i);
+            String name = selected;
+            Thresholds t = thresholds;
+
+            if (level == module.getSelectLevel()) {
+                name = stats.getName(node);
+
+                // No statistics for WAS internal components
+                if (module.isInternal(name)) {
+                    continue;
+                }
+
+                t = walk.selector.select(name);
+                if (t == null) {
+                    continue;
+                }
+
+                if (module.isQualified()) {
+                    name = stats.getName(parent) + "#" + name;
+                }
+            } else if (level > module.getSelectLevel()) {
+                name = selected + "." + stats.getName(node);
+            }
+
+            if (level < module.getDepth()) {
+                if (level < module.getDepth() - 1 || module.isParent(stats.getName(node))) {
+                    code = Math.max(code, walk(stats, node, level + 1, name, t, module, table, walk));
+                }
+            } else {
+                code = Math.max(code, evaluate(stats, node, name, t, module, table, walk));
+            }
+        }
+        return code;
+    }
+
+    /*
+     * Evaluates every metric of the table for one
+     * instance and returns the instance test code.
+     * The instance is ranked by its highest threshold
+     * ratio when only the worst ones are reported.
+     */
+    private int evaluate(FlatStats stats, int node, String name, Thresholds thresholds, PMIModule module, Metric[] table, Walk walk) {
+        Perfdata output = walk.output;
+        int code = 0;
+        double score = 0;
+        List<String> alerts = new ArrayList<String>(2);
+
+        boolean empty = true;
+        output.begin();
+        for (Metric metric : table) {
+            // Metric label, also the sample key of interval metrics
+            Labels.Label label = Labels.get(module.getPrefix(), name, metric.getName());
+            String key = metric.getValue().isStateful() ? label.toString() : null;
+            double value, bound;
+
+            try {
+                value = metric.getValue().value(stats, node, walk.samples, key);
+                bound = metric.getBound() != null ? metric.getBound().value(stats, node, walk.samples, key) : 0;
+            } catch (NullPointerException e) {
+                if (metric.isOptional()) {
+                    continue;
+                }
+                throw e;
+            }
+
+            // No value yet (first sample of a rate)
+            if (Double.isNaN(value)) {
+                continue;
+            }
+
+            // Test output (Nagios performance data)
+            if (! empty) {
+                output.append(' ');
+            }
+            empty = false;
+            output.metric(label, value, metric.getValue().isDecimal()).append(metric.getUnit());
+            if (metric.getBound() != null) {
+                output.append(";;;0;").append(bound, metric.getBound().isDecimal());
+            }
+
+            // Test return code
+            Thresholds t = metric.getThresholds() != null ? metric.getThresholds() : thresholds;
+            if (metric.getBasis() == Metric.Basis.NONE || t.size() <= metric.getIndex()) {
+                continue;
+            }
+            long warning = t.getWarning(metric.getIndex());
+            long critical = t.getCritical(metric.getIndex());
+            int testCode;
+            String item;
+            if (t.isSigma(metric.getIndex())) {
+                double checked = metric.getBasis() == Metric.Basis.RATIO ? (bound > 0 ? value * 100 / bound : 0) : value;
+                long now = System.currentTimeMillis();
+                double sigmas = walk.baseline.deviation(walk.baseline.id(label, now), checked, now);
+                // Floor metrics alert below their baseline
+                if (metric.getBasis() == Metric.Basis.FLOOR) {
+                    sigmas = -sigmas;
+                }
+                if (Double.isNaN(sigmas)) {
+                    continue;
+                }
+                testCode = checkResult(sigmas, critical, warning);
+                item = "'" + name + "' (" + format(value, metric.getValue().isDecimal()) + ", " + format(sigmas, true) + " sigma)";
+                score = Math.max(score, score(sigmas, critical));
+                walk.proximity = Math.max(walk.proximity, score(sigmas, warning));
+            } else if (metric.getBasis() == Metric.Basis.RATIO) {
+                double ratio = bound > 0 ? value * 100 / bound : 0;
+                testCode = checkResult(Math.round(value), Math.round(bound), critical, warning);
+                item = "'" + name + "' (" + format(value, metric.getValue().isDecimal()) + "/" + format(bound, metric.getBound().isDecimal()) + ")";
+                score = Math.max(score, score(ratio, critical));
+                walk.proximity = Math.max(walk.proximity, score(ratio, warning));
+            } else if (metric.getBasis() == Metric.Basis.FLOOR) {
+                double checked = value * metric.getScale();
+                testCode = checkFloor(checked, critical, warning);
+                item = "'" + name + "' (" + format(checked, metric.getValue().isDecimal()) + ")";
+                score = Math.max(score, checked > 0 ? critical / checked : Double.POSITIVE_INFINITY);
+                walk.proximity = Math.max(walk.proximity, checked > 0 ? warning / checked : Double.POSITIVE_INFINITY);
+            } else {
+                // Decimal values (rates) are not rounded
+                double checked = value * metric.getScale();
+                testCode = checkResult(checked, critical, warning);
+                item = "'" + name + "' (" + format(checked, metric.getValue().isDecimal()) + ")";
+                score = Math.max(score, score(checked, critical));
+                walk.proximity = Math.max(walk.proximity, score(checked, warning));
+            }
+
+            if (testCode == Status.WARNING.getCode() || testCode == Status.CRITICAL.getCode()) {
+                alerts.add(metric.getPrefix());
+                alerts.add(item);
+                code = Math.max(code, testCode);
+            }
+        }
+
+        int perfdata = output.end();
+
+        if (walk.offenders != null) {
+            walk.offenders.offer(code, score, perfdata, alerts.toArray(new String[alerts.size()]));
+        } else {
+            for (int i = 0; i < alerts.size(); i += 2) {
+                walk.messages.get(alerts.get(i)).add(alerts.get(i + 1));
+            }
+        }
+
+        return code;
+    }
+
+    /*
+     * How close a value is to a threshold.
+     */
+    private static double score(double value, long critical) {
+        return critical > 0 ? value / critical : value;
+    }
+
+    /*
+     * The state of a test run, shared by all the
+     * modules and instances.
+     */
+    private static final class Walk {
+
+        Selector selector;
+        SampleStore samples;
+        Baseline baseline;
+        Perfdata output;
+        Offenders offenders;
+        double proximity;
+        final Map<String,List<String>> messages = new LinkedHashMap<String,List<String>>();
+
+    }
+
+}
@@ -19,15 +19,17 @@
 package net.wait4it.nagios.wasagent.tests;
 
 import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 
 import javax.management.ObjectName;
 
+import net.wait4it.nagios.wasagent.core.Baseline;
+import net.wait4it.nagios.wasagent.core.Labels;
+import net.wait4it.nagios.wasagent.core.Perfdata;
 import net.wait4it.nagios.wasagent.core.Result;
+import net.wait4it.nagios.wasagent.core.SampleStore;
 import net.wait4it.nagios.wasagent.core.Status;
 import net.wait4it.nagios.wasagent.core.WASClientProxy;
 
@@ -36,29 +38,52 @@ import net.wait4it.nagios.wasagent.core.WASClientProxy;
  * WebSphere SIB provider. Also display stats
  * for the SIB error queue (*SYSTEM.Exception.Destination*)
  * 
+ * The depth of each queue is kept between two checks, to
+ * compute how fast the queue grows (messages per second,
+ * negative when the queue drains, smoothed over about a
+ * minute). From the second check on, the test also reports:
+ * 
+ *   - the growth rate of the queue (msg/s)
+ *   - the time to drain the queue, when it drains (s)
+ *   - the time to reach the critical depth, when the
+ *     queue grows (s)
+ * 
+ * Thresholds are given as 'depth[,rate[,time]]' pairs,
+ * e.g. '*,1000,5000,10,100,600,120': the depth pair, the
+ * growth rate pair, and the pair of times to reach the
+ * critical depth, which alert when the time is short.
+ * 
  * @author Yann Lambret
  *
  */
 public class SIBQueueTest extends TestUtils implements Test {
 
+    // WAS internal components
+    private static final Selector INTERNAL = Selector.compile("!_PSIMP*|!_PTRM*");
+
+    // Threshold pairs
+    private static final int DEPTH = 0;
+    private static final int RATE = 1;
+    private static final int TIME = 2;
+
     /**
      * WebSphere SIB queues stats.
      * 
      * @param proxy   an applicative proxy for the target WAS instance
      * @param params  a pipe separated list of SIB queue names, or
-     *                a wildcard character (*) for all SIB queues
+     *                a wildcard character (*) for all SIB queues,
+     *                with depth, rate and time thresholds
      * @return result collected data and test status
      */
     public Result run(WASClientProxy proxy, String params) {
         Result result = new Result();
-        List<String> output = new ArrayList<String>();
+        Perfdata output = result.getPerfdata();
         List<String> message = new ArrayList<String>();
         int code = 0;
 
         // Test thresholds
         long warning, critical;
-        String thresholds = "";
-        Map<String,String> queues = new HashMap<String,String>();
+        Thresholds thresholds;
 
         // Test code for a specific queue
         int testCode = 0;
@@ -72,10 +97,20 @@ public class SIBQueueTest extends TestUtils implements Test {
         // Performance data
         long depth;
 
+        // Closest queue to its warning threshold
+        double proximity = 0;
+
         // Parses HTTP query params
-        for (String s : Arrays.asList(params.split("\\|"))) {
-            queues.put(s.split(",", 2)[0], s.split(",", 2)[1]);
-        }
+        Selector queues = Selector.compile(params);
+
+        // Learned depths, for baseline thresholds
+        Baseline baseline = Baseline.forTarget(proxy.getTarget());
+
+        // Previous depths, for growth rates
+        SampleStore samples = SampleStore.forCheck(proxy.getCheck());
+
+        // Worst queues, if required
+        Offenders offenders = proxy.getTop() > 0 ? new Offenders(output, proxy.getTop()) : null;
 
         try {
             Set<ObjectName> mbeans = proxy.getMBeans("WebSphere:*,type=SIBQueuePoint");
@@ -83,26 +118,88 @@ public class SIBQueueTest extends TestUtils implements Test {
                 identifier = (String)proxy.getAttribute(mbean, "identifier");
 
                 // No statistics for WAS internal components
-                if (identifier.matches("^_PSIMP.*||^_PTRM.*")) {
+                if (INTERNAL.excludes(identifier)) {
                     continue;
                 }
 
-                if (queues.containsKey("*") || queues.containsKey(identifier)) {
+                thresholds = queues.select(identifier);
+                if (thresholds != null) {
                     depth = (Long)proxy.getAttribute(mbean, "depth");
+                    long now = System.currentTimeMillis();
+                    Labels.Label label = Labels.get("sib-queue-", identifier, "");
+                    Labels.Label rateLabel = Labels.get("sib-queue-", identifier, "rate");
+                    double rate = samples.trend(rateLabel.toString(), depth, now);
+
+                    // Time to drain the queue, or to reach the critical depth
+                    warning = thresholds.getWarning(DEPTH);
+                    critical = thresholds.getCritical(DEPTH);
+                    double drain = rate < 0 && depth > 0 ? depth / -rate : Double.NaN;
+                    double full = rate > 0 && ! thresholds.isSigma(DEPTH) && depth < critical ? (critical - depth) / rate : Double.NaN;
 
                     // Test output (Nagios performance data)
-                    output.add("sib-queue-" + identifier + "=" + depth);
+                    output.begin();
+                    output.metric(label, depth, false);
+                    if (! Double.isNaN(rate)) {
+                        output.append(' ').metric(rateLabel, rate, true);
+                    }
+                    if (! Double.isNaN(drain)) {
+                        output.append(' ').metric(Labels.get("sib-queue-", identifier, "drain"), drain, false).append('s');
+                    }
+                    if (! Double.isNaN(full)) {
+                        output.append(' ').metric(Labels.get("sib-queue-", identifier, "full"), full, false).append('s');
+                    }
+                    int item = output.end();
 
                     // Test return code
-                    thresholds = queues.get("*") != null ? queues.get("*") : queues.get(identifier);
-                    warning = Long.parseLong(thresholds.split(",")[0]);
-                    critical = Long.parseLong(thresholds.split(",")[1]);
-                    testCode = checkResult(depth, critical, warning);
+                    String detail = String.valueOf(depth);
+                    double score;
+                    if (thresholds.isSigma(DEPTH)) {
+                        double sigmas = baseline.deviation(baseline.id(label, now), depth, now);
+                        testCode = Double.isNaN(sigmas) ? 0 : checkResult(sigmas, critical, warning);
+                        detail += Double.isNaN(sigmas) ? "" : ", " + format(sigmas, true) + " sigma";
+                        score = Double.isNaN(sigmas) ? 0 : sigmas / Math.max(critical, 1);
+                        proximity = Double.isNaN(sigmas) ? proximity : Math.max(proximity, sigmas / Math.max(warning, 1));
+                    } else {
+                        testCode = checkResult(depth, critical, warning);
+                        score = critical > 0 ? (double) depth / critical : depth;
+                        proximity = Math.max(proximity, warning > 0 ? (double) depth / warning : depth);
+                    }
+
+                    // Growth rate thresholds
+                    if (thresholds.size() > RATE && ! thresholds.isSigma(RATE) && ! Double.isNaN(rate)) {
+                        long w = thresholds.getWarning(RATE), c = thresholds.getCritical(RATE);
+                        int rateCode = checkResult(rate, c, w);
+                        if (rateCode > 0) {
+                            detail += ", " + (rate > 0 ? "+" : "") + format(rate, true) + "/s";
+                        }
+                        testCode = Math.max(testCode, rateCode);
+                        score = Math.max(score, c > 0 ? rate / c : rate);
+                        proximity = Math.max(proximity, w > 0 ? rate / w : rate);
+                    }
+
+                    // Time to critical depth thresholds
+                    if (thresholds.size() > TIME && ! thresholds.isSigma(TIME) && ! Double.isNaN(full)) {
+                        long w = thresholds.getWarning(TIME), c = thresholds.getCritical(TIME);
+                        int timeCode = checkFloor(full, c, w);
+                        if (timeCode > 0) {
+                            detail += ", critical in " + format(full, false) + "s";
+                        }
+                        testCode = Math.max(testCode, timeCode);
+                        score = Math.max(score, full > 0 ? c / full : Double.POSITIVE_INFINITY);
+                        proximity = Math.max(proximity, full > 0 ? w / full : Double.POSITIVE_INFINITY);
+                    }
 
+                    String[] alert = new String[0];
                     if (testCode == Status.WARNING.getCode() || testCode == Status.CRITICAL.getCode()) {
-                        message.add("'" + identifier + "' depth (" + depth + ")");
+                        alert = new String[] {prefix, "'" + identifier + "' depth (" + detail + ")"};
                         code = (testCode > code) ? testCode : code;
                     }
+
+                    if (offenders != null) {
+                        offenders.offer(testCode, score, item, alert);
+                    } else if (alert.length > 0) {
+                        message.add(alert[1]);
+                    }
                 }
             }
         } catch (Exception e) {
@@ -119,8 +216,20 @@ public class SIBQueueTest extends TestUtils implements Test {
             }
         }
 
-        result.setOutput(formatOut(output));
-        result.setMessage(formatMsg(prefix, message));
+        String summary = "";
+        if (offenders != null) {
+            offenders.report(Collections.singletonMap(prefix, message));
+            summary = offenders.summary();
+        }
+
+        String msg = formatMsg(prefix, message);
+        if (summary.length() > 0) {
+            msg += (msg.length() > 0 ? " - " : "") + summary;
+        }
+
+        output.sort();
+        result.setMessage(msg);
+        result.setProximity(proximity);
 
         return result;
     }
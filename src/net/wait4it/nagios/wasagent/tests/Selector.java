@@ -0,0 +1,346 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.wait4it.nagios.wasagent.tests;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * A compiled instance name selector.
+ *
+ * The query syntax is a pipe separated list of entries:
+ *
+ *   name,warning,critical     exact instance name
+ *   jdbc/app*,warning,critical glob pattern ('*' and '?')
+ *   ~regex,warning,critical    regular expression
+ *   *,warning,critical         all instances
+ *   !name, !glob*, !~regex     excluded instances
+ *
+ * The thresholds are the fields after the first comma (one or
+ * more warning/critical pairs, e.g. '100,200' or '3sigma,5sigma').
+ * A comma which belongs to a name or a pattern is escaped with a
+ * backslash, e.g. 'q\,1,20,50' selects the instance 'q,1'.
+ * When several entries match an instance, an exact name wins
+ * over a glob pattern (the longest literal prefix first), a
+ * glob pattern over a regular expression, and a regular
+ * expression over the '*' wildcard. Excluded instances never
+ * match. Before selectors, the '*' thresholds won over those
+ * of an exact name: a query such as '*,10,20|jdbc/ds,50,80'
+ * now checks 'jdbc/ds' against 50 and 80 (a breaking change,
+ * see the README).
+ *
+ * Selectors are compiled once and cached by query string.
+ * Exact names are looked up in a hash table and glob patterns
+ * are indexed by their literal prefix in a character trie, so
+ * matching a name does not allocate (regular expressions aside).
+ */
+public final class Selector {
+
+    // Compiled selectors, keyed by query string
+    private static final int CACHE_SIZE = 128;
+    private static final Map<String,Selector> CACHE = Collections.synchronizedMap(
+            new LinkedHashMap<String,Selector>(CACHE_SIZE, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String,Selector> eldest) {
+                    return size() > CACHE_SIZE;
+                }
+            });
+
+    // Included instances
+    private final Map<String,Thresholds> names = new HashMap<String,Thresholds>();
+    private final Node globs = new Node();
+    private final List<Regex> regexes = new ArrayList<Regex>();
+    private Thresholds any = null;
+
+    // Excluded instances
+    private final Set<String> excludedNames = new HashSet<String>();
+    private final Node excludedGlobs = new Node();
+    private final List<Regex> excludedRegexes = new ArrayList<Regex>();
+
+    private Selector() {
+    }
+
+    /**
+     * Gets the compiled selector for the given query
+     * string, compiling it on first use.
+     *
+     * @param  params a pipe separated list of selector entries
+     * @return the compiled selector
+     * @throws IllegalArgumentException if an entry is malformed
+     */
+    public static Selector compile(String params) {
+        Selector selector = CACHE.get(params);
+        if (selector == null) {
+            selector = new Selector();
+            for (String entry : params.split("\\|")) {
+                if (entry.length() > 0) {
+                    selector.add(entry);
+                }
+            }
+            CACHE.put(params, selector);
+        }
+        return selector;
+    }
+
+    /**
+     * Gets the thresholds for an instance name.
+     *
+     * @param  name the instance name
+     * @return the thresholds of the best matching entry, or
+     *         null if the instance is not selected
+     */
+    public Thresholds select(String name) {
+        if (excludes(name)) {
+            return null;
+        }
+
+        Thresholds thresholds = names.get(name);
+        if (thresholds != null) {
+            return thresholds;
+        }
+
+        Glob glob = globs.match(name);
+        if (glob != null) {
+            return glob.thresholds;
+        }
+
+        for (Regex regex : regexes) {
+            if (regex.pattern.matcher(name).matches()) {
+                return regex.thresholds;
+            }
+        }
+
+        return any;
+    }
+
+    /**
+     * @return true if the '*' wildcard selects all the
+     *         instances (but the excluded ones)
+     */
+    public boolean selectsAll() {
+        return any != null;
+    }
+
+    /**
+     * Checks if an instance name is explicitly excluded.
+     *
+     * @param  name the instance name
+     * @return true if an exclusion entry matches the name
+     */
+    public boolean excludes(String name) {
+        if (excludedNames.contains(name) || excludedGlobs.match(name) != null) {
+            return true;
+        }
+        for (Regex regex : excludedRegexes) {
+            if (regex.pattern.matcher(name).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void add(String entry) {
+        int comma = comma(entry);
+
+        // Exclusion entries have no thresholds
+        if (entry.startsWith("!")) {
+            if (comma >= 0) {
+                throw new IllegalArgumentException("invalid selector entry: '" + entry + "'");
+            }
+            addPattern(unescape(entry.substring(1)), null);
+            return;
+        }
+
+        if (comma < 0) {
+            throw new IllegalArgumentException("invalid selector entry: '" + entry + "'");
+        }
+        addPattern(unescape(entry.substring(0, comma)), Thresholds.parse(entry.substring(comma + 1)));
+    }
+
+    /*
+     * The pattern of an entry ends at its first unescaped comma.
+     */
+    private static int comma(String entry) {
+        int comma = entry.indexOf(',');
+        while (comma > 0 && entry.charAt(comma - 1) == '\\') {
+            comma = entry.indexOf(',', comma + 1);
+        }
+        return comma;
+    }
+
+    /*
+     * Turns the escaped commas of a pattern back into commas.
+     */
+    private static String unescape(String pattern) {
+        return pattern.indexOf("\\,") < 0 ? pattern : pattern.replace("\\,", ",");
+    }
+
+    private void addPattern(String pattern, Thresholds thresholds) {
+        boolean excluded = thresholds == null;
+
+        if (pattern.startsWith("~")) {
+            Regex regex;
+            try {
+                regex = new Regex(Pattern.compile(pattern.substring(1)), thresholds);
+            } catch (PatternSyntaxException e) {
+                throw new IllegalArgumentException("invalid selector pattern: '" + pattern + "'");
+            }
+            (excluded ? excludedRegexes : regexes).add(regex);
+        } else if (! excluded && pattern.equals("*")) {
+            any = thresholds;
+        } else if (pattern.indexOf('*') >= 0 || pattern.indexOf('?') >= 0) {
+            (excluded ? excludedGlobs : globs).add(new Glob(pattern, thresholds));
+        } else if (excluded) {
+            excludedNames.add(pattern);
+        } else if (! names.containsKey(pattern)) {
+            names.put(pattern, thresholds);
+        }
+    }
+
+    /**
+     * A glob pattern. The literal prefix is
+     * already matched by the trie walk.
+     */
+    private static final class Glob {
+
+        final String pattern;
+        final int prefix;
+        final Thresholds thresholds;
+
+        Glob(String pattern, Thresholds thresholds) {
+            int star = pattern.indexOf('*');
+            int question = pattern.indexOf('?');
+            this.pattern = pattern;
+            this.prefix = star < 0 ? question : (question < 0 ? star : Math.min(star, question));
+            this.thresholds = thresholds;
+        }
+
+        boolean matches(String s) {
+            int p = prefix, i = prefix, star = -1, mark = 0;
+            while (i < s.length()) {
+                if (p < pattern.length() && (pattern.charAt(p) == '?' || pattern.charAt(p) == s.charAt(i))) {
+                    p++;
+                    i++;
+                } else if (p < pattern.length() && pattern.charAt(p) == '*') {
+                    star = p++;
+                    mark = i;
+                } else if (star >= 0) {
+                    p = star + 1;
+                    i = ++mark;
+                } else {
+                    return false;
+                }
+            }
+            while (p < pattern.length() && pattern.charAt(p) == '*') {
+                p++;
+            }
+            return p == pattern.length();
+        }
+
+    }
+
+    /**
+     * A regular expression entry.
+     */
+    private static final class Regex {
+
+        final Pattern pattern;
+        final Thresholds thresholds;
+
+        Regex(Pattern pattern, Thresholds thresholds) {
+            this.pattern = pattern;
+            this.thresholds = thresholds;
+        }
+
+    }
+
+    /**
+     * A character trie node. Glob patterns hang off the
+     * node reached by their literal prefix.
+     */
+    private static final class Node {
+
+        private char[] keys = new char[0];
+        private Node[] children = new Node[0];
+        private Glob[] globs = new Glob[0];
+
+        void add(Glob glob) {
+            Node node = this;
+            for (int i = 0; i < glob.prefix; i++) {
+                node = node.child(glob.pattern.charAt(i), true);
+            }
+            Glob[] g = new Glob[node.globs.length + 1];
+            System.arraycopy(node.globs, 0, g, 0, node.globs.length);
+            g[node.globs.length] = glob;
+            node.globs = g;
+        }
+
+        /*
+         * Walks down the trie along the name and keeps the
+         * last matching glob, i.e. the one with the longest
+         * literal prefix.
+         */
+        Glob match(String name) {
+            Glob best = null;
+            Node node = this;
+            int i = 0;
+            while (node != null) {
+                for (Glob glob : node.globs) {
+                    if (glob.matches(name)) {
+                        best = glob;
+                        break;
+                    }
+                }
+                node = i < name.length() ? node.child(name.charAt(i++), false) : null;
+            }
+            return best;
+        }
+
+        private Node child(char c, boolean create) {
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c) {
+                    return children[i];
+                }
+            }
+            if (! create) {
+                return null;
+            }
+            char[] k = new char[keys.length + 1];
+            Node[] n = new Node[children.length + 1];
+            System.arraycopy(keys, 0, k, 0, keys.length);
+            System.arraycopy(children, 0, n, 0, children.length);
+            k[keys.length] = c;
+            n[children.length] = new Node();
+            keys = k;
+            children = n;
+            return n[children.length - 1];
+        }
+
+    }
+
+}
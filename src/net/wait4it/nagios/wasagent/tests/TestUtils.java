@@ -21,6 +21,8 @@ package net.wait4it.nagios.wasagent.tests;
 import java.util.Collections;
 import java.util.List;
 
+import net.wait4it.nagios.wasagent.core.Perfdata;
+
 /**
  * Common test methods.
  * 
@@ -66,6 +68,57 @@ public abstract class TestUtils {
         return code;
     }
 
+    /**
+     * Compares a decimal value (e.g. a rate, or a distance
+     * to a baseline in standard deviations) to the submitted
+     * thresholds, without rounding it first.
+     * 
+     * @param n        the test output value
+     * @param critical the critical threshold
+     * @param warning  the warning threshold
+     * @return         a Nagios exit code (0, 1 or 2)
+     */
+    public static int checkResult(double n, long critical, long warning) {
+        int code = 0;
+        if (n >= critical) {
+            code = 2;
+        } else if (n >= warning) {
+            code = 1;
+        }
+        return code;
+    }
+
+    /**
+     * Compares a value to the submitted floor thresholds,
+     * for metrics which should not drop too low.
+     * 
+     * @param n        the test output value
+     * @param critical the critical threshold
+     * @param warning  the warning threshold
+     * @return         a Nagios exit code (0, 1 or 2)
+     */
+    public static int checkFloor(double n, long critical, long warning) {
+        int code = 0;
+        if (n <= critical) {
+            code = 2;
+        } else if (n <= warning) {
+            code = 1;
+        }
+        return code;
+    }
+
+    /**
+     * Formats a metric value, as in the performance data
+     * (see {@link Perfdata#format(double, boolean)}).
+     *
+     * @param value   the metric value
+     * @param decimal true for a decimal value, false for an integer one
+     * @return        the formatted value
+     */
+    public static String format(double value, boolean decimal) {
+        return Perfdata.format(value, decimal);
+    }
+
     /**
      * This method is used when a test produces a data set.
      * 
@@ -73,15 +126,7 @@ public abstract class TestUtils {
      * @return      a nicely formatted string
      */
     public String formatOut(List<String> list) {
-        String s = "";
-        if (! list.isEmpty()) {
-            Collections.sort(list);
-            s = list.remove(0);
-            while(! list.isEmpty()) {
-                s += " " + list.remove(0);
-            }
-        }
-        return s;
+        return join("", " ", list);
     }
 
     /**
@@ -93,15 +138,31 @@ public abstract class TestUtils {
      * @return        a nicely formatted string
      */
     public String formatMsg(String prefix, List<String> list) {
-        String s = "";
-        if (! list.isEmpty()) {
-            Collections.sort(list);
-            s = prefix + list.remove(0);
-            while(! list.isEmpty()) {
-                s += ", " + list.remove(0);
+        return join(prefix, ", ", list);
+    }
+
+    /**
+     * Sorts and joins a list of strings.
+     * 
+     * @param  prefix    a string prepended to the result
+     * @param  separator the separator between two list items
+     * @param  list      a list of strings produced by the test
+     * @return           the joined string, or an empty string
+     *                   if the list is empty
+     */
+    private static String join(String prefix, String separator, List<String> list) {
+        if (list.isEmpty()) {
+            return "";
+        }
+        Collections.sort(list);
+        StringBuilder s = new StringBuilder(prefix);
+        for (int i = 0; i < list.size(); i++) {
+            if (i > 0) {
+                s.append(separator);
             }
+            s.append(list.get(i));
         }
-        return s;
+        return s.toString();
     }
 
     /**
@@ -0,0 +1,141 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ *
+ */
+
+package net.wait4it.nagios.wasagent.tests;
+
+/**
+ * Warning and critical thresholds attached to
+ * a selector entry. Instances are immutable and
+ * parsed once when the selector is compiled.
+ *
+ * Most tests use a single 'warning,critical' pair.
+ * Tests with several thresholded metrics accept
+ * additional pairs, e.g. 'w1,c1,w2,c2'.
+ *
+ * A pair may also be given as a number of standard
+ * deviations from the learned baseline of the metric,
+ * e.g. '3sigma,5sigma' (see {@link net.wait4it.nagios.wasagent.core.Baseline}).
+ */
+public final class Thresholds {
+
+    // Suffix of baseline thresholds
+    static final String SIGMA = "sigma";
+
+    private final long[] values;
+    private final boolean[] sigmas;
+
+    public Thresholds(long warning, long critical) {
+        this(new long[] {warning, critical}, new boolean[1]);
+    }
+
+    private Thresholds(long[] values, boolean[] sigmas) {
+        this.values = values;
+        this.sigmas = sigmas;
+    }
+
+    /**
+     * Parses a 'warning,critical[,warning,critical...]' string.
+     * Both thresholds of a pair may end with 'sigma'.
+     *
+     * @param  s the thresholds string
+     * @return the parsed thresholds
+     * @throws IllegalArgumentException if the string is malformed
+     */
+    public static Thresholds parse(String s) {
+        String[] fields = s.split(",");
+        if (fields.length == 0 || fields.length % 2 != 0) {
+            throw new IllegalArgumentException("invalid thresholds: '" + s + "'");
+        }
+        long[] values = new long[fields.length];
+        boolean[] sigmas = new boolean[fields.length / 2];
+        try {
+            for (int i = 0; i < fields.length; i++) {
+                String field = fields[i].trim();
+                boolean sigma = field.endsWith(SIGMA);
+                if (sigma) {
+                    field = field.substring(0, field.length() - SIGMA.length());
+                }
+                if (i % 2 == 0) {
+                    sigmas[i / 2] = sigma;
+                } else if (sigmas[i / 2] != sigma) {
+                    throw new NumberFormatException();
+                }
+                values[i] = Long.parseLong(field);
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("invalid thresholds: '" + s + "'");
+        }
+        return new Thresholds(values, sigmas);
+    }
+
+    /**
+     * @return the number of warning/critical pairs
+     */
+    public int size() {
+        return values.length / 2;
+    }
+
+    public long getWarning() {
+        return values[0];
+    }
+
+    public long getCritical() {
+        return values[1];
+    }
+
+    /**
+     * @param  index the pair index
+     * @return the warning threshold of the given pair
+     */
+    public long getWarning(int index) {
+        return values[index * 2];
+    }
+
+    /**
+     * @param  index the pair index
+     * @return the critical threshold of the given pair
+     */
+    public long getCritical(int index) {
+        return values[index * 2 + 1];
+    }
+
+    /**
+     * @param  index the pair index
+     * @return true if the pair is a number of standard
+     *         deviations from the metric baseline
+     */
+    public boolean isSigma(int index) {
+        return sigmas[index];
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder s = new StringBuilder();
+        for (int i = 0; i < values.length; i++) {
+            if (i > 0) {
+                s.append(',');
+            }
+            s.append(values[i]);
+            if (sigmas[i / 2]) {
+                s.append(SIGMA);
+            }
+        }
+        return s.toString();
+    }
+
+}
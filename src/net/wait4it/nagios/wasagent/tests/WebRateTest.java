@@ -0,0 +1,72 @@
+/**
+ * This file is part of Wasagent.
+ *
+ * Wasagent is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * Wasagent is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with Wasagent. If not, see <http://www.gnu.org/licenses/>.
+ * 
+ */
+
+package net.wait4it.nagios.wasagent.tests;
+
+import com.ibm.websphere.pmi.stat.WSWebAppStats;
+
+/**
+ * Gets request and error rates (per second) for
+ * web modules and servlets, over the last polling
+ * interval.
+ * 
+ * The query parameters accept two thresholds pairs:
+ * 
+ *   name,warning,critical[,warning,critical]
+ * 
+ * The first pair applies to the error rate, and the
+ * optional second pair is a floor for the request rate
+ * (throughput drop). Both pairs are given per minute,
+ * so that rates below one per second can be told from
+ * zero: alert messages give the per minute rates, and the
+ * performance data the per second ones. Rates are not
+ * reported on the first check, as there is no previous
+ * sample yet.
+ */
+public class WebRateTest extends PMITest {
+
+    // WEB module
+    private static final PMIModule WEB_MODULE = new PMIModule(WSWebAppStats.NAME, 1, "webapp-", "Web Applications");
+
+    // WEB module > servlets module > servlet
+    private static final PMIModule SERVLET = new PMIModule(WSWebAppStats.NAME, 3, "servlet-", "Web Applications");
+
+    static {
+        for (PMIModule module : new PMIModule[] {WEB_MODULE, SERVLET}) {
+            // No statistics for WAS internal components
+            module.setInternal("!ibmasyncrsp#ibmasyncrsp.war|!rspservlet");
+
+            // Thresholds per minute
+            Metric errorRate = new Metric("errorRate", Expression.rate(WSWebAppStats.ServletStats.ErrorCount), null,
+                    Metric.Basis.VALUE, "error rate (per minute): ");
+            errorRate.setScale(60);
+            module.add(errorRate);
+
+            Metric requestRate = new Metric("requestRate", Expression.rate(WSWebAppStats.ServletStats.RequestCount), null,
+                    Metric.Basis.FLOOR, "request rate (per minute): ");
+            requestRate.setScale(60);
+            requestRate.setIndex(1);
+            module.add(requestRate);
+        }
+    }
+
+    public WebRateTest() {
+        super(WEB_MODULE, SERVLET);
+    }
+
+}